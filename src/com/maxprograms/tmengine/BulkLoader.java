@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.mapdb.Fun;
+
+import com.maxprograms.tmutils.TMUtils;
+
+/**
+ * Collects the segments and n-grams of an import into an empty memory and
+ * writes them when the import ends, instead of inserting them one by one in
+ * the trees of {@link TuvDatabase} and {@link FuzzyIndex}. Segments and
+ * postings of each language are sorted in run files in the memory folder,
+ * keeping at most {@code maxMemory} bytes in memory, and each tree is built
+ * bottom-up from the merged runs in one sequential pass.
+ */
+class BulkLoader {
+
+	static final String FOLDER = "bulk.tmp";
+
+	static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+
+	private File folder;
+	private long maxMemory;
+	private boolean postings;
+	private Map<String, Language> languages;
+	// orders the segments stored for the same docId
+	private int sequence;
+
+	/**
+	 * @param database  memory folder
+	 * @param maxMemory bytes of segments and postings kept in memory
+	 * @param postings  whether n-grams are collected for a {@link FuzzyIndex}
+	 */
+	BulkLoader(File database, long maxMemory, boolean postings) throws IOException {
+		folder = new File(database, FOLDER);
+		if (folder.exists()) {
+			TMUtils.deleteFolder(folder.getAbsolutePath());
+		}
+		if (!folder.mkdirs()) {
+			MessageFormat mf = new MessageFormat("Unable to create folder {0}.");
+			throw new IOException(mf.format(new String[] { folder.getAbsolutePath() }));
+		}
+		this.maxMemory = maxMemory;
+		this.postings = postings;
+		languages = new TreeMap<>();
+	}
+
+	/**
+	 * Returns true if n-grams must be passed to
+	 * {@link #index(String, int, int[], int)}.
+	 */
+	boolean indexes() {
+		return postings;
+	}
+
+	/**
+	 * Stores the segment of a docId in a language, replacing the one stored
+	 * before. A null {@code texts} removes it.
+	 */
+	void store(String lang, int id, String[] texts) throws IOException {
+		byte[] payload = new byte[0];
+		if (texts != null) {
+			byte[] puretext = texts[0].getBytes(StandardCharsets.UTF_8);
+			byte[] seg = texts[1].getBytes(StandardCharsets.UTF_8);
+			payload = ByteBuffer.allocate(Integer.BYTES + puretext.length + seg.length).putInt(puretext.length)
+					.put(puretext).put(seg).array();
+		}
+		getLanguage(lang).segments.add((long) id << 32 | (sequence++ & 0xFFFFFFFFL), payload);
+		checkMemory();
+	}
+
+	void index(String lang, int id, int[] ngrams, int length) throws IOException {
+		Language language = getLanguage(lang);
+		for (int i = 0; i < ngrams.length; i++) {
+			language.postings.add((long) ngrams[i] << 32 | id);
+		}
+		if (id >= language.lengths.length) {
+			language.lengths = Arrays.copyOf(language.lengths, Math.max(id + 1, language.lengths.length * 2));
+		}
+		language.lengths[id] = length;
+		checkMemory();
+	}
+
+	private Language getLanguage(String lang) {
+		return languages.computeIfAbsent(lang, l -> new Language(folder, l, postings));
+	}
+
+	/**
+	 * Writes the largest buffers to run files until the memory used is below
+	 * the limit.
+	 */
+	private void checkMemory() throws IOException {
+		long used = 0;
+		Iterator<Language> it = languages.values().iterator();
+		while (it.hasNext()) {
+			Language language = it.next();
+			used += language.segments.getMemory() + (postings ? language.postings.getMemory() : 0);
+		}
+		while (used > maxMemory) {
+			SortedRuns largest = null;
+			it = languages.values().iterator();
+			while (it.hasNext()) {
+				Language language = it.next();
+				if (largest == null || language.segments.getMemory() > largest.getMemory()) {
+					largest = language.segments;
+				}
+				if (postings && language.postings.getMemory() > largest.getMemory()) {
+					largest = language.postings;
+				}
+			}
+			used -= largest.getMemory();
+			largest.spill();
+		}
+	}
+
+	/**
+	 * Writes the segments and, if collected, the fuzzy index of all languages.
+	 */
+	void finish(TuvDatabase tuvs, FuzzyIndex index) throws IOException {
+		Iterator<Map.Entry<String, Language>> it = languages.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Language> entry = it.next();
+			String lang = entry.getKey();
+			Language language = entry.getValue();
+			SortedRuns.Cursor cursor = language.segments.cursor();
+			try {
+				SortedRuns hashes = new SortedRuns(folder, lang + "_exact", false, maxMemory);
+				tuvs.load(lang, new SegmentSource(cursor), hashes);
+				hashes.delete();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				cursor.close();
+			}
+			language.segments.delete();
+			if (postings) {
+				index.load(lang, language.postings, language.lengths);
+				language.postings.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes all run files.
+	 */
+	void delete() throws IOException {
+		languages.clear();
+		TMUtils.deleteFolder(folder.getAbsolutePath());
+	}
+
+	private static class Language {
+
+		SortedRuns segments;
+		SortedRuns postings;
+		int[] lengths;
+
+		Language(File folder, String lang, boolean collectPostings) {
+			segments = new SortedRuns(folder, lang + "_segments", true, 0);
+			if (collectPostings) {
+				postings = new SortedRuns(folder, lang + "_postings", false, 0);
+				lengths = new int[1024];
+			}
+		}
+	}
+
+	/**
+	 * Returns the last segment stored for each docId, in descending docId
+	 * order, skipping docIds whose last segment was removed.
+	 */
+	private static class SegmentSource implements Iterator<Fun.Tuple2<Integer, String[]>> {
+
+		private SortedRuns.Cursor cursor;
+		private Fun.Tuple2<Integer, String[]> next;
+		private int last = -1;
+
+		SegmentSource(SortedRuns.Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (next == null && cursor.next()) {
+					int id = (int) (cursor.getKey() >> 32);
+					if (id == last) {
+						// replaced by the segment just read
+						continue;
+					}
+					last = id;
+					byte[] payload = cursor.getPayload();
+					if (payload.length > 0) {
+						ByteBuffer buffer = ByteBuffer.wrap(payload);
+						int length = buffer.getInt();
+						String puretext = new String(payload, Integer.BYTES, length, StandardCharsets.UTF_8);
+						String seg = new String(payload, Integer.BYTES + length,
+								payload.length - Integer.BYTES - length, StandardCharsets.UTF_8);
+						next = Fun.t2(id, new String[] { puretext, seg });
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return next != null;
+		}
+
+		@Override
+		public Fun.Tuple2<Integer, String[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Fun.Tuple2<Integer, String[]> result = next;
+			next = null;
+			return result;
+		}
+	}
+}
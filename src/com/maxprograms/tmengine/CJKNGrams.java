@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.util.Arrays;
+
+public class CJKNGrams implements INGramStrategy {
+
+	public static final String NAME = "cjk-bigrams";
+
+	CJKNGrams() {
+		// shared instance returned by NGrams
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int[] getNGrams(String string) {
+		String src = string.toLowerCase();
+		int[] buffer = NGrams.getBuffer(src.length());
+		int size = NGrams.getBigrams(src, buffer);
+		return Arrays.copyOf(buffer, size);
+	}
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Reads the records of another segment store through a {@link RecordCache}.
+ * Changes are written to the store and remove the cached record.
+ */
+class CachedTuvDatabase implements ITuvDatabase {
+
+	private ITuvDatabase store;
+	private RecordCache cache;
+
+	CachedTuvDatabase(ITuvDatabase store, RecordCache cache) {
+		this.store = store;
+		this.cache = cache;
+	}
+
+	@Override
+	public void store(String lang, int id, String puretext, String seg) throws IOException {
+		store.store(lang, id, puretext, seg);
+		cache.invalidateTuv(lang, id);
+	}
+
+	@Override
+	public void remove(String lang, int id) throws IOException {
+		store.remove(lang, id);
+		cache.invalidateTuv(lang, id);
+	}
+
+	@Override
+	public String getPureText(String lang, int id) throws IOException {
+		String[] tuv = getTuv(lang, id);
+		return tuv != null ? tuv[0] : null;
+	}
+
+	@Override
+	public String getSegText(String lang, int id) throws IOException {
+		String[] tuv = getTuv(lang, id);
+		return tuv != null ? tuv[1] : null;
+	}
+
+	@Override
+	public String[] getTuv(String lang, int id) throws IOException {
+		return cache.getTuv(lang, id, () -> store.getTuv(lang, id));
+	}
+
+	@Override
+	public String[] getMatch(String srcLang, String tgtLang, int id) throws IOException {
+		String[] source = getTuv(srcLang, id);
+		if (source == null) {
+			return null;
+		}
+		String target = getSegText(tgtLang, id);
+		return target != null ? new String[] { source[0], source[1], target } : null;
+	}
+
+	@Override
+	public Set<Integer> getPerfectMatches(String lang, String searchStr) throws IOException {
+		return store.getPerfectMatches(lang, searchStr);
+	}
+
+	@Override
+	public Set<Integer> getKeySet(String lang) throws IOException {
+		return store.getKeySet(lang);
+	}
+
+	@Override
+	public void commit() {
+		store.commit();
+	}
+
+	@Override
+	public void close() {
+		store.close();
+		cache.clear();
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.util.Arrays;
+
+/**
+ * Counts shared n-grams per candidate docId in an open addressing hash table
+ * of primitive ints. DocIds are always positive, so 0 marks a free slot.
+ * Instances are reused by the thread that obtained them with {@link #get()}.
+ */
+class CandidateCounter {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// larger tables are not kept for the next search
+	private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+	private static final ThreadLocal<CandidateCounter> counters = ThreadLocal.withInitial(CandidateCounter::new);
+
+	private int[] keys;
+	private int[] counts;
+	private int mask;
+	private int size;
+
+	private CandidateCounter() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns an empty counter for the calling thread.
+	 */
+	static CandidateCounter get() {
+		CandidateCounter counter = counters.get();
+		if (counter.keys.length > MAX_POOLED_CAPACITY) {
+			counter.allocate(INITIAL_CAPACITY);
+		} else if (counter.size > 0) {
+			Arrays.fill(counter.keys, 0);
+			counter.size = 0;
+		}
+		return counter;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		counts = new int[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns the docId in a slot, 0 if the slot is free.
+	 */
+	int key(int slot) {
+		return keys[slot];
+	}
+
+	int count(int slot) {
+		return counts[slot];
+	}
+
+	void increment(int slot) {
+		counts[slot]++;
+	}
+
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Adds one to the count of a docId, inserting it if not present.
+	 */
+	void add(int id) {
+		int slot = hash(id) & mask;
+		while (true) {
+			int key = keys[slot];
+			if (key == id) {
+				counts[slot]++;
+				return;
+			}
+			if (key == 0) {
+				keys[slot] = id;
+				counts[slot] = 1;
+				if (++size * 2 > keys.length) {
+					resize(keys.length * 2);
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Adds one to the count of a docId that is already present.
+	 */
+	void addIfPresent(int id) {
+		int slot = hash(id) & mask;
+		while (true) {
+			int key = keys[slot];
+			if (key == id) {
+				counts[slot]++;
+				return;
+			}
+			if (key == 0) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Removes the docIds counted less than {@code min} times.
+	 */
+	void prune(int min) {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		int survivors = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0 && oldCounts[i] >= min) {
+				survivors++;
+			}
+		}
+		if (survivors == size) {
+			return;
+		}
+		int capacity = oldKeys.length;
+		while (capacity > INITIAL_CAPACITY && survivors * 4 < capacity) {
+			capacity >>= 1;
+		}
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0 && oldCounts[i] >= min) {
+				insert(oldKeys[i], oldCounts[i]);
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				insert(oldKeys[i], oldCounts[i]);
+			}
+		}
+	}
+
+	private void insert(int id, int count) {
+		int slot = hash(id) & mask;
+		while (keys[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = id;
+		counts[slot] = count;
+		size++;
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+/**
+ * Decides when the TUs stored by an import are committed: after a number of
+ * TUs, after a number of characters of TU text or after some time since the
+ * last commit, whichever comes first. Limits set to 0 are not checked; with
+ * all limits at 0, TUs are only committed when the import ends.
+ */
+public class CommitPolicy {
+
+	public static final int DEFAULT_INTERVAL = 500;
+
+	private int interval;
+	private long size;
+	private long millis;
+
+	private int tus;
+	private long characters;
+	private long last;
+
+	/**
+	 * Commits every {@link #DEFAULT_INTERVAL} TUs.
+	 */
+	public CommitPolicy() {
+		this(DEFAULT_INTERVAL, 0, 0);
+	}
+
+	/**
+	 * @param interval number of TUs
+	 * @param size     number of characters of TU text
+	 * @param millis   milliseconds since the last commit
+	 */
+	public CommitPolicy(int interval, long size, long millis) {
+		this.interval = interval;
+		this.size = size;
+		this.millis = millis;
+		last = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts a stored TU and returns true if the TUs stored since the last
+	 * commit must be committed now.
+	 */
+	public boolean stored(long tuCharacters) {
+		tus++;
+		characters += tuCharacters;
+		boolean commit = (interval > 0 && tus >= interval) || (size > 0 && characters >= size)
+				|| (millis > 0 && System.currentTimeMillis() - last >= millis);
+		if (commit) {
+			tus = 0;
+			characters = 0;
+			last = System.currentTimeMillis();
+		}
+		return commit;
+	}
+}
@@ -0,0 +1,1282 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fuzzy index that keeps, for each n-gram, sorted lists of TU ids compressed
+ * as variable length deltas. Recent changes are kept in memory and written to
+ * a log on commit; once enough have accumulated they are flushed to a new
+ * immutable, memory-mapped segment file. A segment holds the ids added and
+ * removed since the previous one, so searches read the segments from oldest
+ * to newest and then the buffered changes. Segments of similar size are
+ * merged in a background thread, {@code mergeFactor} at a time, as long as
+ * the merged segment stays below 2 GB.
+ */
+public class CompressedFuzzyIndex implements IFuzzyIndex {
+
+	private static final Logger LOGGER = System.getLogger(CompressedFuzzyIndex.class.getName());
+
+	public static final String NAME = "compressed";
+
+	public static final int DEFAULT_FLUSH_SIZE = 1 << 18;
+	public static final int DEFAULT_MERGE_FACTOR = 4;
+
+	private static final String FOLDER = "postings";
+	private static final String EXTENSION = ".idx";
+	private static final String TMP = ".tmp";
+	private static final int MAGIC = 0x544D4958;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int ENTRY_SIZE = 16;
+
+	// segments smaller than this are all in the first tier
+	private static final long TIER_SIZE = 1 << 16;
+	// a segment is mapped in one buffer; a merged segment is never larger than
+	// the ones it replaces together, so merges stop when they add up to this
+	private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+
+	// shared by all memories, so merges do not compete for the disk
+	private static final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "fuzzy-index-merger");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// last list read by contains(), usually called for many ids in a row
+	private static final ThreadLocal<CachedList> lastList = ThreadLocal.withInitial(CachedList::new);
+
+	private Map<String, Postings> indexes;
+	private File folder;
+	private int flushSize;
+	private int mergeFactor;
+	private boolean background;
+	private boolean syncCommits;
+	private boolean readOnly;
+
+	public CompressedFuzzyIndex(File database) {
+		this(database, DEFAULT_FLUSH_SIZE, DEFAULT_MERGE_FACTOR, true);
+	}
+
+	/**
+	 * @param flushSize   number of buffered postings that are flushed to a new
+	 *                    segment when committing
+	 * @param mergeFactor number of segments of the same tier merged into one
+	 * @param background  merge in a background thread instead of when committing
+	 */
+	public CompressedFuzzyIndex(File database, int flushSize, int mergeFactor, boolean background) {
+		this(database, flushSize, mergeFactor, background, StoreOptions.DEFAULT);
+	}
+
+	/**
+	 * Same as {@link #CompressedFuzzyIndex(File, int, int, boolean)}, writing the
+	 * log to the disk on commit when {@code options} wait for MapDB commits to
+	 * reach it.
+	 */
+	CompressedFuzzyIndex(File database, int flushSize, int mergeFactor, boolean background, StoreOptions options) {
+		folder = new File(database, FOLDER);
+		indexes = new ConcurrentHashMap<>();
+		this.flushSize = Math.max(flushSize, 1);
+		this.mergeFactor = Math.max(mergeFactor, 2);
+		this.background = background;
+		syncCommits = options.syncsCommits();
+	}
+
+	/**
+	 * Opens an index without writing to its folder, for memories that are not
+	 * modified. Changes are rejected.
+	 */
+	public static CompressedFuzzyIndex openReadOnly(File database) {
+		CompressedFuzzyIndex index = new CompressedFuzzyIndex(database);
+		index.readOnly = true;
+		return index;
+	}
+
+	/**
+	 * Checks if a memory folder holds an index of this type.
+	 */
+	public static boolean exists(File database) {
+		return new File(database, FOLDER).isDirectory();
+	}
+
+	private Postings getIndex(String lang) throws IOException {
+		Postings index = indexes.get(lang);
+		if (index == null) {
+			index = openIndex(lang);
+		}
+		return index;
+	}
+
+	private synchronized Postings openIndex(String lang) throws IOException {
+		Postings index = indexes.get(lang);
+		if (index == null) {
+			if (!readOnly && !folder.exists()) {
+				folder.mkdirs();
+			}
+			index = new Postings(folder, lang, flushSize, mergeFactor, background, syncCommits, readOnly);
+			indexes.put(lang, index);
+		}
+		return index;
+	}
+
+	@Override
+	public INGramStrategy getStrategy(String lang) throws IOException {
+		return getIndex(lang).strategy;
+	}
+
+	@Override
+	public void add(String lang, int[] ngrams, int id, int length) throws IOException {
+		getIndex(lang).update(ADD, ngrams, id, length);
+	}
+
+	@Override
+	public void add(String lang, int[][] ngrams, int[] ids, int[] lengths) throws IOException {
+		Postings index = getIndex(lang);
+		for (int i = 0; i < ids.length; i++) {
+			index.update(ADD, ngrams[i], ids[i], lengths[i]);
+		}
+	}
+
+	@Override
+	public void remove(String lang, int[] ngrams, int id) throws IOException {
+		getIndex(lang).update(REMOVE, ngrams, id, 0);
+	}
+
+	@Override
+	public int getFrequency(String lang, int ngram) throws IOException {
+		return getIndex(lang).getFrequency(ngram);
+	}
+
+	@Override
+	public int[] getPostings(String lang, int ngram) throws IOException {
+		return getIndex(lang).getPostings(ngram);
+	}
+
+	@Override
+	public int[] getPostings(String lang, int ngram, int minLength, int maxLength) throws IOException {
+		Postings index = getIndex(lang);
+		return index.lengths.filter(index.getPostings(ngram), minLength, maxLength);
+	}
+
+	@Override
+	public int[] filterByLength(String lang, int[] ids, int minLength, int maxLength) throws IOException {
+		return getIndex(lang).lengths.filter(ids, minLength, maxLength);
+	}
+
+	@Override
+	public boolean contains(String lang, int ngram, int id) throws IOException {
+		Postings index = getIndex(lang);
+		CachedList cached = lastList.get();
+		long version = index.version;
+		if (cached.index != index || cached.ngram != ngram || cached.version != version) {
+			// a change made while reading only leaves the copy marked as older
+			cached.list = index.getPostings(ngram);
+			cached.index = index;
+			cached.ngram = ngram;
+			cached.version = version;
+		}
+		return Arrays.binarySearch(cached.list, id) >= 0;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		Iterator<Postings> it = indexes.values().iterator();
+		while (it.hasNext()) {
+			it.next().commit(false);
+		}
+	}
+
+	/**
+	 * Flushes the buffered changes of the languages in use and merges their
+	 * segments into as few as the size of a segment allows.
+	 */
+	public void compact() throws IOException {
+		Iterator<Postings> it = indexes.values().iterator();
+		while (it.hasNext()) {
+			it.next().compact();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		Iterator<Postings> it = indexes.values().iterator();
+		while (it.hasNext()) {
+			Postings index = it.next();
+			index.commit(true);
+			index.close();
+		}
+		indexes.clear();
+		lastList.remove();
+	}
+
+	private static class CachedList {
+		Postings index;
+		int ngram;
+		long version;
+		int[] list;
+	}
+
+	/**
+	 * Returns the union of two sorted lists without the ids found in a third
+	 * sorted list.
+	 */
+	static int[] combine(int[] stored, int[] adds, int[] removes) {
+		if (adds.length == 0 && removes.length == 0) {
+			return stored;
+		}
+		int[] result = new int[stored.length + adds.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < stored.length || j < adds.length) {
+			int id;
+			if (j == adds.length || (i < stored.length && stored[i] < adds[j])) {
+				id = stored[i++];
+			} else {
+				id = adds[j++];
+				if (i < stored.length && stored[i] == id) {
+					i++;
+				}
+			}
+			while (k < removes.length && removes[k] < id) {
+				k++;
+			}
+			if (k == removes.length || removes[k] != id) {
+				result[size++] = id;
+			}
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	private static int[] toArray(Set<Integer> set) {
+		if (set == null) {
+			return new int[0];
+		}
+		int[] result = new int[set.size()];
+		int i = 0;
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			result[i++] = it.next();
+		}
+		return result;
+	}
+
+	private static void delete(File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			// still mapped by this process on some platforms; try again next time
+			LOGGER.log(Level.DEBUG, "Unable to delete " + file.getName());
+		}
+	}
+
+	/**
+	 * Immutable file with the changes of a range of generations. It starts with
+	 * a header followed by the compressed lists, a table with one entry per
+	 * n-gram (n-gram, number of added ids, number of removed ids and offset of
+	 * the lists), sorted by n-gram, the name of the n-gram strategy and the
+	 * segment lengths recorded in those generations as (docId, length) pairs.
+	 */
+	private static class Segment {
+
+		File file;
+		int first;
+		int last;
+		MappedByteBuffer data;
+		int count;
+		int table;
+		String strategyName;
+
+		Segment(File file, int first, int last) throws IOException {
+			this.file = file;
+			this.first = first;
+			this.last = last;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				if (raf.length() > Integer.MAX_VALUE) {
+					MessageFormat mf = new MessageFormat("Fuzzy index file {0} is too large.");
+					throw new IOException(mf.format(new String[] { file.getName() }));
+				}
+				data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+				MessageFormat mf = new MessageFormat("Fuzzy index file {0} is damaged.");
+				throw new IOException(mf.format(new String[] { file.getName() }));
+			}
+			count = data.getInt(8);
+			table = data.getInt(12);
+			int nameOffset = data.getInt(16);
+			byte[] bytes = new byte[data.getShort(nameOffset)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = data.get(nameOffset + 2 + i);
+			}
+			strategyName = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int size() {
+			return data.capacity();
+		}
+
+		boolean isEmpty() {
+			return count == 0 && data.getInt(24) == 0;
+		}
+
+		int ngram(int entry) {
+			return data.getInt(table + entry * ENTRY_SIZE);
+		}
+
+		int addCount(int entry) {
+			return data.getInt(table + entry * ENTRY_SIZE + 4);
+		}
+
+		int removeCount(int entry) {
+			return data.getInt(table + entry * ENTRY_SIZE + 8);
+		}
+
+		private int offset(int entry) {
+			return data.getInt(table + entry * ENTRY_SIZE + 12);
+		}
+
+		// binary search in the table, returns the entry or -1
+		int find(int ngram) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = ngram(mid);
+				if (value < ngram) {
+					low = mid + 1;
+				} else if (value > ngram) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		int[] adds(int entry) {
+			int[] result = new int[addCount(entry)];
+			decode(offset(entry), result);
+			return result;
+		}
+
+		int[] removes(int entry) {
+			int[] result = new int[removeCount(entry)];
+			if (result.length > 0) {
+				decode(decode(offset(entry), new int[addCount(entry)]), result);
+			}
+			return result;
+		}
+
+		// returns the offset that follows the list
+		private int decode(int offset, int[] result) {
+			int id = 0;
+			for (int i = 0; i < result.length; i++) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data.get(offset++);
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				// ids are signed and sorted, deltas wrap around as unsigned values
+				id += delta;
+				result[i] = id;
+			}
+			return offset;
+		}
+
+		/**
+		 * Sets the lengths recorded in this segment, marking their docIds in
+		 * {@code recorded} if not null.
+		 */
+		void loadLengths(SegmentLengths lengths, BitSet recorded) {
+			int offset = data.getInt(20);
+			int size = data.getInt(24);
+			for (int i = 0; i < size; i++) {
+				int id = data.getInt(offset + i * 6);
+				lengths.set(id, data.getChar(offset + i * 6 + 4));
+				if (recorded != null && id >= 0) {
+					recorded.set(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a segment file. Lists must be added in n-gram order.
+	 */
+	private static class SegmentWriter {
+
+		File file;
+		CountingOutputStream out;
+		DataOutputStream output;
+		int[] ngrams = new int[1024];
+		int[] adds = new int[1024];
+		int[] removes = new int[1024];
+		int[] offsets = new int[1024];
+		int entries;
+
+		SegmentWriter(File file) throws IOException {
+			this.file = file;
+			out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			output = new DataOutputStream(out);
+			output.write(new byte[HEADER_SIZE]);
+		}
+
+		void add(int ngram, int[] added, int[] removed) throws IOException {
+			if (added.length == 0 && removed.length == 0) {
+				return;
+			}
+			if (entries == ngrams.length) {
+				ngrams = Arrays.copyOf(ngrams, entries * 2);
+				adds = Arrays.copyOf(adds, entries * 2);
+				removes = Arrays.copyOf(removes, entries * 2);
+				offsets = Arrays.copyOf(offsets, entries * 2);
+			}
+			ngrams[entries] = ngram;
+			adds[entries] = added.length;
+			removes[entries] = removed.length;
+			offsets[entries] = checkSize(out.count);
+			entries++;
+			encode(added);
+			encode(removed);
+		}
+
+		private void encode(int[] list) throws IOException {
+			int previous = 0;
+			for (int i = 0; i < list.length; i++) {
+				int delta = list[i] - previous;
+				previous = list[i];
+				while ((delta & ~0x7F) != 0) {
+					output.write((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				output.write(delta);
+			}
+		}
+
+		void finish(String strategyName, int[] ids, char[] lengths) throws IOException {
+			int tableOffset;
+			int nameOffset;
+			int lengthsOffset;
+			try {
+				output.flush();
+				tableOffset = checkSize(out.count);
+				for (int i = 0; i < entries; i++) {
+					output.writeInt(ngrams[i]);
+					output.writeInt(adds[i]);
+					output.writeInt(removes[i]);
+					output.writeInt(offsets[i]);
+				}
+				output.flush();
+				nameOffset = checkSize(out.count);
+				output.writeUTF(strategyName);
+				output.flush();
+				lengthsOffset = checkSize(out.count);
+				for (int i = 0; i < ids.length; i++) {
+					output.writeInt(ids[i]);
+					output.writeChar(lengths[i]);
+				}
+				output.flush();
+				checkSize(out.count);
+			} finally {
+				output.close();
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(entries);
+				raf.writeInt(tableOffset);
+				raf.writeInt(nameOffset);
+				raf.writeInt(lengthsOffset);
+				raf.writeInt(ids.length);
+				raf.getFD().sync();
+			}
+		}
+
+		void abort() {
+			try {
+				output.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			delete(file);
+		}
+
+		private int checkSize(long size) throws IOException {
+			if (size > Integer.MAX_VALUE) {
+				MessageFormat mf = new MessageFormat("Fuzzy index file {0} is too large.");
+				throw new IOException(mf.format(new String[] { file.getName() }));
+			}
+			return (int) size;
+		}
+	}
+
+	/**
+	 * Segments and buffered changes of one language. The array of segments is
+	 * replaced, never modified, so searches can read it without locking.
+	 * Segments are written without holding the lock of the postings: a flush
+	 * only holds it to swap the buffer and to publish the new segment, and a
+	 * merge to publish the merged one.
+	 */
+	private static class Postings {
+
+		String lang;
+		File folder;
+		File log;
+		// log of the changes being flushed, kept until their segment is published
+		File flushLog;
+		INGramStrategy strategy;
+		volatile Segment[] segments;
+		// changes whenever the postings do
+		volatile long version;
+		int generation;
+		SegmentLengths lengths = new SegmentLengths();
+		int flushSize;
+		int mergeFactor;
+		boolean background;
+		boolean syncCommits;
+		boolean readOnly;
+		Future<?> merging;
+		boolean closed;
+
+		Changes buffer = new Changes();
+		// changes being written to a new segment, null if none
+		Changes flushing;
+		// one flush and one merge at a time, taken before the postings
+		Object flushLock = new Object();
+		Object mergeLock = new Object();
+		FileOutputStream logFile;
+		DataOutputStream journal;
+		// records written since the log was last synced
+		boolean unsynced;
+
+		Postings(File folder, String lang, int flushSize, int mergeFactor, boolean background, boolean syncCommits,
+				boolean readOnly) throws IOException {
+			this.folder = folder;
+			this.lang = lang;
+			this.flushSize = flushSize;
+			this.mergeFactor = mergeFactor;
+			this.background = background;
+			this.syncCommits = syncCommits;
+			this.readOnly = readOnly;
+			log = new File(folder, lang + ".log");
+			flushLog = new File(folder, lang + ".flush.log");
+			segments = openSegments();
+			if (readOnly) {
+				strategy = segments.length == 0 ? NGrams.getStrategy(lang)
+						: NGrams.getStrategyByName(segments[0].strategyName);
+				if (strategy == null) {
+					MessageFormat mf = new MessageFormat(
+							"Fuzzy index for {0} was built with unknown n-gram strategy {1}.");
+					throw new IOException(mf.format(new String[] { lang, segments[0].strategyName }));
+				}
+				for (int i = 0; i < segments.length; i++) {
+					segments[i].loadLengths(lengths, null);
+				}
+				return;
+			}
+			if (segments.length == 0) {
+				File file = getFile(0, 0);
+				SegmentWriter writer = new SegmentWriter(file);
+				writer.finish(NGrams.getStrategy(lang).getName(), new int[0], new char[0]);
+				segments = new Segment[] { new Segment(file, 0, 0) };
+			}
+			generation = segments[segments.length - 1].last;
+			String name = segments[0].strategyName;
+			strategy = NGrams.getStrategyByName(name);
+			if (strategy == null) {
+				MessageFormat mf = new MessageFormat("Fuzzy index for {0} was built with unknown n-gram strategy {1}.");
+				throw new IOException(mf.format(new String[] { lang, name }));
+			}
+			INGramStrategy expected = NGrams.getStrategy(lang);
+			if (!strategy.getName().equals(expected.getName())) {
+				MessageFormat mf = new MessageFormat(
+						"Fuzzy index for {0} was built with {1} n-grams instead of {2}; rebuild the memory to use {2}.");
+				LOGGER.log(Level.WARNING, mf.format(new String[] { lang, strategy.getName(), expected.getName() }));
+			}
+			for (int i = 0; i < segments.length; i++) {
+				segments[i].loadLengths(lengths, null);
+			}
+			boolean interrupted = flushLog.exists();
+			if (interrupted) {
+				replay(flushLog);
+			}
+			if (log.exists()) {
+				replay(log);
+			}
+			if (interrupted) {
+				joinLogs();
+			}
+			openJournal(true);
+			scheduleMerge();
+		}
+
+		File getFile(int first, int last) {
+			return new File(folder, lang + "." + first + "-" + last + EXTENSION);
+		}
+
+		/**
+		 * Opens the segments of the language in generation order. Files left by
+		 * an interrupted flush or merge are deleted, and so are segments whose
+		 * generations are included in a merged one.
+		 */
+		private Segment[] openSegments() throws IOException {
+			String prefix = lang + ".";
+			List<int[]> ranges = new ArrayList<>();
+			List<File> files = new ArrayList<>();
+			String[] names = folder.list();
+			if (names != null) {
+				for (int i = 0; i < names.length; i++) {
+					if (!names[i].startsWith(prefix)) {
+						continue;
+					}
+					if (names[i].endsWith(EXTENSION + TMP)) {
+						if (!readOnly) {
+							delete(new File(folder, names[i]));
+						}
+						continue;
+					}
+					if (!names[i].endsWith(EXTENSION)) {
+						continue;
+					}
+					String range = names[i].substring(prefix.length(), names[i].length() - EXTENSION.length());
+					int dash = range.indexOf('-');
+					if (dash == -1) {
+						continue;
+					}
+					try {
+						ranges.add(new int[] { Integer.parseInt(range.substring(0, dash)),
+								Integer.parseInt(range.substring(dash + 1)) });
+						files.add(new File(folder, names[i]));
+					} catch (NumberFormatException e) {
+						// not an index file
+					}
+				}
+			}
+			List<Segment> result = new ArrayList<>();
+			for (int i = 0; i < ranges.size(); i++) {
+				int[] range = ranges.get(i);
+				boolean obsolete = false;
+				for (int j = 0; j < ranges.size() && !obsolete; j++) {
+					int[] other = ranges.get(j);
+					obsolete = other[0] <= range[0] && range[1] <= other[1]
+							&& other[1] - other[0] > range[1] - range[0];
+				}
+				if (obsolete) {
+					if (!readOnly) {
+						delete(files.get(i));
+					}
+				} else {
+					result.add(new Segment(files.get(i), range[0], range[1]));
+				}
+			}
+			result.sort((a, b) -> Integer.compare(a.first, b.first));
+			return result.toArray(new Segment[result.size()]);
+		}
+
+		/**
+		 * Applies the records of a log. A last record that was not completely
+		 * written is cut from the log, so that records appended later are not
+		 * read as part of it.
+		 */
+		private void replay(File file) throws IOException {
+			long complete = 0;
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				while (true) {
+					byte op = input.readByte();
+					int id = input.readInt();
+					int length = input.readInt();
+					int[] ngrams = new int[input.readInt()];
+					for (int i = 0; i < ngrams.length; i++) {
+						ngrams[i] = input.readInt();
+					}
+					apply(op, ngrams, id, length);
+					complete += 1 + Integer.BYTES * (3 + (long) ngrams.length);
+				}
+			} catch (EOFException e) {
+				// end of log, or last record not completely written
+			}
+			if (complete < file.length()) {
+				MessageFormat mf = new MessageFormat("Discarding incomplete last record of fuzzy index log {0}.");
+				LOGGER.log(Level.WARNING, mf.format(new String[] { file.getName() }));
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(complete);
+					raf.getFD().sync();
+				}
+			}
+		}
+
+		/**
+		 * Appends the log to the one of an unfinished flush and makes the result
+		 * the log. Records whose changes already reached a segment change nothing
+		 * when applied again.
+		 */
+		private void joinLogs() throws IOException {
+			try (FileOutputStream output = new FileOutputStream(flushLog, true)) {
+				if (log.exists()) {
+					Files.copy(log.toPath(), output);
+				}
+				output.getFD().sync();
+			}
+			Files.move(flushLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private void openJournal(boolean append) throws IOException {
+			logFile = new FileOutputStream(log, append);
+			journal = new DataOutputStream(new BufferedOutputStream(logFile));
+		}
+
+		synchronized void update(byte op, int[] ngrams, int id, int length) throws IOException {
+			if (readOnly) {
+				MessageFormat mf = new MessageFormat("Fuzzy index for {0} is read-only.");
+				throw new IOException(mf.format(new String[] { lang }));
+			}
+			journal.writeByte(op);
+			journal.writeInt(id);
+			journal.writeInt(length);
+			journal.writeInt(ngrams.length);
+			for (int i = 0; i < ngrams.length; i++) {
+				journal.writeInt(ngrams[i]);
+			}
+			unsynced = true;
+			apply(op, ngrams, id, length);
+		}
+
+		private void apply(byte op, int[] ngrams, int id, int length) {
+			lengths.set(id, length);
+			buffer.apply(op, ngrams, id, length);
+			version++;
+		}
+
+		/**
+		 * Writes the log, waiting for it to reach the disk if commits are synced,
+		 * and flushes the buffered changes to a new segment if there are enough of
+		 * them or {@code flush} is set.
+		 */
+		void commit(boolean flush) throws IOException {
+			if (readOnly) {
+				return;
+			}
+			boolean full;
+			synchronized (this) {
+				journal.flush();
+				if (syncCommits && unsynced) {
+					logFile.getFD().sync();
+				}
+				unsynced = false;
+				full = flush ? !buffer.isEmpty() : buffer.pending >= flushSize;
+			}
+			if (full) {
+				flush(flush);
+				scheduleMerge();
+			}
+		}
+
+		private void flush(boolean all) throws IOException {
+			synchronized (flushLock) {
+				Changes changes;
+				Segment[] current;
+				synchronized (this) {
+					if (all ? buffer.isEmpty() : buffer.pending < flushSize) {
+						// flushed by another thread meanwhile
+						return;
+					}
+					// later changes go to a new log and buffer
+					journal.close();
+					Files.move(log.toPath(), flushLog.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					openJournal(false);
+					unsynced = false;
+					changes = buffer;
+					flushing = changes;
+					buffer = new Changes();
+					current = segments;
+				}
+				int gen = generation + 1;
+				// the empty segment written for a new index is replaced by the first flush
+				int kept = current.length == 1 && current[0].isEmpty() ? 0 : current.length;
+				int first = kept == 0 ? current[0].first : gen;
+				Segment segment;
+				try {
+					segment = write(changes, first, gen);
+				} catch (IOException e) {
+					synchronized (this) {
+						// back to a single buffer and log
+						changes.addAll(buffer);
+						buffer = changes;
+						flushing = null;
+						journal.close();
+						joinLogs();
+						openJournal(true);
+					}
+					throw e;
+				}
+				synchronized (this) {
+					// merges never include the empty segment, so it is still alone
+					Segment[] latest = segments;
+					Segment[] next = Arrays.copyOf(latest, kept == 0 ? 1 : latest.length + 1);
+					next[next.length - 1] = segment;
+					segments = next;
+					generation = gen;
+					flushing = null;
+					version++;
+				}
+				if (kept == 0) {
+					delete(current[0].file);
+				}
+				// changes are now in the segment
+				delete(flushLog);
+			}
+		}
+
+		private Segment write(Changes changes, int first, int last) throws IOException {
+			File file = getFile(first, last);
+			File tmp = new File(folder, file.getName() + TMP);
+			SegmentWriter writer = new SegmentWriter(tmp);
+			try {
+				TreeSet<Integer> keys = new TreeSet<>(changes.added.keySet());
+				keys.addAll(changes.removed.keySet());
+				Iterator<Integer> it = keys.iterator();
+				while (it.hasNext()) {
+					int ngram = it.next();
+					writer.add(ngram, toArray(changes.added.get(ngram)), toArray(changes.removed.get(ngram)));
+				}
+				int[] ids = new int[changes.lengths.size()];
+				char[] values = new char[ids.length];
+				int i = 0;
+				Iterator<Entry<Integer, Integer>> entries = changes.lengths.entrySet().iterator();
+				while (entries.hasNext()) {
+					Entry<Integer, Integer> entry = entries.next();
+					ids[i] = entry.getKey();
+					values[i++] = (char) Math.min(entry.getValue(), SegmentLengths.MAX_LENGTH);
+				}
+				writer.finish(strategy.getName(), ids, values);
+			} catch (IOException e) {
+				writer.abort();
+				throw e;
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new Segment(file, first, last);
+		}
+
+		/**
+		 * Waits for the running merge, if any, and closes the log.
+		 */
+		void close() throws IOException {
+			synchronized (this) {
+				closed = true;
+			}
+			awaitMerge();
+			synchronized (flushLock) {
+				synchronized (mergeLock) {
+					synchronized (this) {
+						if (journal != null) {
+							journal.close();
+						}
+						segments = new Segment[0];
+						version++;
+					}
+				}
+			}
+		}
+
+		private void awaitMerge() {
+			Future<?> task;
+			synchronized (this) {
+				task = merging;
+			}
+			if (task != null) {
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					LOGGER.log(Level.WARNING, e.getMessage(), e);
+				}
+			}
+		}
+
+		/**
+		 * Flushes the buffer and merges runs of adjacent segments whose total size
+		 * stays below {@link #MAX_SEGMENT_SIZE}, a single run unless the index is
+		 * larger than that. Segments flushed while merging are kept after them.
+		 */
+		void compact() throws IOException {
+			if (readOnly) {
+				return;
+			}
+			commit(true);
+			synchronized (mergeLock) {
+				int start = 0;
+				while (true) {
+					Segment[] current = segments;
+					if (start >= current.length - 1) {
+						return;
+					}
+					int end = start + 1;
+					long size = current[start].size();
+					while (end < current.length && size + current[end].size() <= MAX_SEGMENT_SIZE) {
+						size += current[end++].size();
+					}
+					if (end - start > 1) {
+						Segment[] run = Arrays.copyOfRange(current, start, end);
+						replace(start, run, merge(run, start == 0));
+					}
+					start++;
+				}
+			}
+		}
+
+		/**
+		 * Puts a merged segment in the place of the run it was merged from.
+		 */
+		private void replace(int start, Segment[] run, Segment merged) {
+			synchronized (this) {
+				// flushes only append to the array, so the run is still in place
+				Segment[] latest = segments;
+				Segment[] next = new Segment[latest.length - run.length + 1];
+				System.arraycopy(latest, 0, next, 0, start);
+				next[start] = merged;
+				System.arraycopy(latest, start + run.length, next, start + 1, latest.length - start - run.length);
+				segments = next;
+				version++;
+			}
+			for (int i = 0; i < run.length; i++) {
+				delete(run[i].file);
+			}
+		}
+
+		private int tier(Segment segment) {
+			int tier = 0;
+			long limit = TIER_SIZE * mergeFactor;
+			while (segment.size() >= limit) {
+				tier++;
+				limit *= mergeFactor;
+			}
+			return tier;
+		}
+
+		/**
+		 * Returns the position of the newest run of {@code mergeFactor} adjacent
+		 * segments of the same tier whose total size stays below
+		 * {@link #MAX_SEGMENT_SIZE}, or -1 if there is none.
+		 */
+		private int findMerge(Segment[] current) {
+			int run = 1;
+			for (int i = current.length - 2; i >= 0; i--) {
+				if (tier(current[i]) == tier(current[i + 1])) {
+					run++;
+					if (run == mergeFactor) {
+						long size = 0;
+						for (int j = i; j < i + mergeFactor; j++) {
+							size += current[j].size();
+						}
+						if (size <= MAX_SEGMENT_SIZE) {
+							return i;
+						}
+						run--;
+					}
+				} else {
+					run = 1;
+				}
+			}
+			return -1;
+		}
+
+		private void scheduleMerge() throws IOException {
+			synchronized (this) {
+				if (closed || findMerge(segments) == -1) {
+					return;
+				}
+				if (background) {
+					if (merging == null || merging.isDone()) {
+						merging = merger.submit(() -> {
+							try {
+								mergeAll();
+							} catch (IOException e) {
+								MessageFormat mf = new MessageFormat("Unable to merge fuzzy index segments of {0}.");
+								LOGGER.log(Level.ERROR, mf.format(new String[] { lang }), e);
+							}
+						});
+					}
+					return;
+				}
+			}
+			mergeAll();
+		}
+
+		private void mergeAll() throws IOException {
+			synchronized (mergeLock) {
+				while (true) {
+					Segment[] current;
+					synchronized (this) {
+						if (closed) {
+							return;
+						}
+						current = segments;
+					}
+					int start = findMerge(current);
+					if (start == -1) {
+						return;
+					}
+					Segment[] run = Arrays.copyOfRange(current, start, start + mergeFactor);
+					replace(start, run, merge(run, start == 0));
+				}
+			}
+		}
+
+		/**
+		 * Writes one segment with the changes of several adjacent ones. When the
+		 * oldest segment is included there is nothing older to remove ids from,
+		 * so removed ids and unknown lengths are dropped.
+		 */
+		private Segment merge(Segment[] run, boolean oldest) throws IOException {
+			int first = run[0].first;
+			int last = run[run.length - 1].last;
+			File file = getFile(first, last);
+			File tmp = new File(folder, file.getName() + TMP);
+			SegmentWriter writer = new SegmentWriter(tmp);
+			try {
+				int[] entries = new int[run.length];
+				while (true) {
+					int ngram = 0;
+					boolean found = false;
+					for (int i = 0; i < run.length; i++) {
+						if (entries[i] < run[i].count && (!found || run[i].ngram(entries[i]) < ngram)) {
+							ngram = run[i].ngram(entries[i]);
+							found = true;
+						}
+					}
+					if (!found) {
+						break;
+					}
+					int[] adds = new int[0];
+					int[] removes = new int[0];
+					for (int i = 0; i < run.length; i++) {
+						if (entries[i] < run[i].count && run[i].ngram(entries[i]) == ngram) {
+							int[] segmentAdds = run[i].adds(entries[i]);
+							int[] segmentRemoves = run[i].removes(entries[i]);
+							adds = combine(adds, segmentAdds, segmentRemoves);
+							removes = combine(removes, segmentRemoves, segmentAdds);
+							entries[i]++;
+						}
+					}
+					writer.add(ngram, adds, oldest ? new int[0] : removes);
+				}
+				SegmentLengths merged = new SegmentLengths();
+				BitSet recorded = new BitSet();
+				for (int i = 0; i < run.length; i++) {
+					run[i].loadLengths(merged, recorded);
+				}
+				int[] ids = new int[recorded.cardinality()];
+				char[] values = new char[ids.length];
+				int size = 0;
+				for (int id = recorded.nextSetBit(0); id >= 0; id = recorded.nextSetBit(id + 1)) {
+					int length = merged.get(id);
+					if (length != 0 || !oldest) {
+						ids[size] = id;
+						values[size++] = (char) length;
+					}
+				}
+				writer.finish(strategy.getName(), Arrays.copyOf(ids, size), Arrays.copyOf(values, size));
+			} catch (IOException e) {
+				writer.abort();
+				throw e;
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new Segment(file, first, last);
+		}
+
+		int getFrequency(int ngram) {
+			Segment[] current;
+			int df = 0;
+			synchronized (this) {
+				// read together, a flush publishes its segment and drops its changes
+				current = segments;
+				df += buffer.frequency(ngram);
+				if (flushing != null) {
+					df += flushing.frequency(ngram);
+				}
+			}
+			for (int i = 0; i < current.length; i++) {
+				int entry = current[i].find(ngram);
+				if (entry != -1) {
+					df += current[i].addCount(entry) - current[i].removeCount(entry);
+				}
+			}
+			return Math.max(df, 0);
+		}
+
+		int[] getPostings(int ngram) {
+			Segment[] current;
+			int[] flushedAdds = new int[0];
+			int[] flushedRemoves = new int[0];
+			int[] adds;
+			int[] removes;
+			synchronized (this) {
+				// read together, a flush publishes its segment and drops its changes
+				current = segments;
+				if (flushing != null) {
+					flushedAdds = toArray(flushing.added.get(ngram));
+					flushedRemoves = toArray(flushing.removed.get(ngram));
+				}
+				adds = toArray(buffer.added.get(ngram));
+				removes = toArray(buffer.removed.get(ngram));
+			}
+			int[] result = new int[0];
+			for (int i = 0; i < current.length; i++) {
+				int entry = current[i].find(ngram);
+				if (entry != -1) {
+					result = combine(result, current[i].adds(entry), current[i].removes(entry));
+				}
+			}
+			result = combine(result, flushedAdds, flushedRemoves);
+			return combine(result, adds, removes);
+		}
+	}
+
+	/**
+	 * Changes made since a flush, with the segment lengths they record.
+	 */
+	private static class Changes {
+
+		TreeMap<Integer, TreeSet<Integer>> added = new TreeMap<>();
+		TreeMap<Integer, TreeSet<Integer>> removed = new TreeMap<>();
+		TreeMap<Integer, Integer> lengths = new TreeMap<>();
+		int pending;
+
+		void apply(byte op, int[] ngrams, int id, int length) {
+			lengths.put(id, length);
+			for (int i = 0; i < ngrams.length; i++) {
+				move(op == ADD ? added : removed, op == ADD ? removed : added, ngrams[i], id);
+			}
+		}
+
+		/**
+		 * Applies newer changes over these ones.
+		 */
+		void addAll(Changes newer) {
+			addAll(newer.added, added, removed);
+			addAll(newer.removed, removed, added);
+			lengths.putAll(newer.lengths);
+		}
+
+		private void addAll(TreeMap<Integer, TreeSet<Integer>> changes, TreeMap<Integer, TreeSet<Integer>> target,
+				TreeMap<Integer, TreeSet<Integer>> other) {
+			Iterator<Entry<Integer, TreeSet<Integer>>> it = changes.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry<Integer, TreeSet<Integer>> entry = it.next();
+				Iterator<Integer> ids = entry.getValue().iterator();
+				while (ids.hasNext()) {
+					move(target, other, entry.getKey(), ids.next());
+				}
+			}
+		}
+
+		private void move(TreeMap<Integer, TreeSet<Integer>> target, TreeMap<Integer, TreeSet<Integer>> other,
+				int ngram, int id) {
+			TreeSet<Integer> set = other.get(ngram);
+			if (set != null && set.remove(id)) {
+				pending--;
+				if (set.isEmpty()) {
+					other.remove(ngram);
+				}
+			}
+			if (target.computeIfAbsent(ngram, k -> new TreeSet<>()).add(id)) {
+				pending++;
+			}
+		}
+
+		boolean isEmpty() {
+			return pending == 0 && lengths.isEmpty();
+		}
+
+		int frequency(int ngram) {
+			TreeSet<Integer> adds = added.get(ngram);
+			TreeSet<Integer> removes = removed.get(ngram);
+			return (adds == null ? 0 : adds.size()) - (removes == null ? 0 : removes.size());
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private OutputStream out;
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+	}
+}
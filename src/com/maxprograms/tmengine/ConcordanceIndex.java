@@ -0,0 +1,523 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+/**
+ * Maps the character trigrams of the pure text of segments to their docIds,
+ * one MapDB file per language, to find the segments that may contain a
+ * concordance search string. Characters are folded to one case, so postings
+ * hold all segments that contain the string with or without matching case.
+ * The docIds of a trigram are kept as bitmaps of {@link #BLOCK} consecutive
+ * docIds, keyed by a long with the hashed trigram in the high half and the
+ * block number in the low half, so that TUs imported together update one entry
+ * per trigram instead of adding one per segment. Postings of trigrams with the
+ * same hash are mixed, and candidates are verified against the text.
+ */
+class ConcordanceIndex {
+
+	static final int GRAM_LENGTH = 3;
+
+	// docIds in one bitmap
+	private static final int BLOCK = 64;
+
+	// postings of a language kept in memory before they are written
+	private static final int PENDING_SIZE = 1024 * 1024;
+
+	// posting lists checked by a search, rarest first
+	private static final int MAX_LOOKUPS = 4;
+
+	// run files of a build
+	static final String FOLDER = "concordance.tmp";
+
+	private static final String PREFIX = "concordance_";
+
+	private Map<String, DB> databases;
+	private Map<String, BTreeMap<Long, Long>> maps;
+	private Map<String, BTreeMap<Integer, Integer>> frequencies;
+	private Map<String, long[]> pending;
+	private Map<String, Integer> pendingSizes;
+	private File folder;
+	private StoreOptions options;
+
+	ConcordanceIndex(File folder, StoreOptions options) {
+		this.folder = folder;
+		this.options = options;
+		databases = new ConcurrentHashMap<>();
+		maps = new ConcurrentHashMap<>();
+		frequencies = new ConcurrentHashMap<>();
+		pending = new ConcurrentHashMap<>();
+		pendingSizes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the distinct hashed trigrams of a text, sorted.
+	 */
+	static int[] getGrams(String text) {
+		if (text.length() < GRAM_LENGTH) {
+			return new int[0];
+		}
+		int[] grams = new int[text.length() - GRAM_LENGTH + 1];
+		char a = fold(text.charAt(0));
+		char b = fold(text.charAt(1));
+		for (int i = 0; i < grams.length; i++) {
+			char c = fold(text.charAt(i + 2));
+			grams[i] = hash(a, b, c);
+			a = b;
+			b = c;
+		}
+		Arrays.sort(grams);
+		int size = 0;
+		for (int i = 0; i < grams.length; i++) {
+			if (size == 0 || grams[i] != grams[size - 1]) {
+				grams[size++] = grams[i];
+			}
+		}
+		return size == grams.length ? grams : Arrays.copyOf(grams, size);
+	}
+
+	/**
+	 * Folds case one character at a time, so that all cases of a letter,
+	 * including the final sigma and the dotted and dotless i, get the same
+	 * character that they get after {@link String#toLowerCase()}.
+	 */
+	private static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	private static int hash(char a, char b, char c) {
+		long key = (long) a << 32 | (long) b << 16 | c;
+		// not negative, so that keys are positive longs
+		return (int) (key * 0x9E3779B97F4A7C15L >>> 33);
+	}
+
+	private static long getKey(int gram, int block) {
+		return (long) gram << 32 | block;
+	}
+
+	/**
+	 * Returns true if every segment whose pure text contains {@code searchStr}
+	 * is found by {@link #getCandidates(String, int[])} with the trigrams of
+	 * the string. A string shorter than a trigram has none, and lower case
+	 * strings with characters that {@link String#toLowerCase()} adds or that
+	 * are part of surrogate pairs may not match the folded text of the
+	 * segments.
+	 */
+	static boolean canSearch(String searchStr, boolean caseSensitive) {
+		if (searchStr.length() < GRAM_LENGTH) {
+			return false;
+		}
+		if (caseSensitive) {
+			return true;
+		}
+		for (int i = 0; i < searchStr.length(); i++) {
+			char c = searchStr.charAt(i);
+			if (c == '\u0307' || Character.isSurrogate(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the index of a language was completely written. Indexes
+	 * of languages without segments are created complete when first used.
+	 */
+	boolean isComplete(String lang) throws IOException {
+		if (!maps.containsKey(lang) && !new File(folder, PREFIX + lang).exists()) {
+			return false;
+		}
+		try {
+			getIndex(lang);
+		} catch (IOException e) {
+			// damaged by a build that did not end
+			return false;
+		}
+		return databases.get(lang).getAtomicBoolean("complete").get();
+	}
+
+	private BTreeMap<Long, Long> getIndex(String lang) throws IOException {
+		if (!maps.containsKey(lang)) {
+			openIndex(lang);
+		}
+		return maps.get(lang);
+	}
+
+	private synchronized void openIndex(String lang) throws IOException {
+		if (maps.containsKey(lang)) {
+			return;
+		}
+		File file = new File(folder, PREFIX + lang);
+		boolean created = !file.exists();
+		DB mapdb = null;
+		try {
+			mapdb = options.maker(file).make();
+		} catch (Error ioe) {
+			throw new IOException(ioe.getMessage());
+		}
+		if (created) {
+			mapdb.getAtomicBoolean("complete").set(true);
+			mapdb.commit();
+		}
+		BTreeMap<Long, Long> postings = mapdb.exists("postings") ? mapdb.getTreeMap("postings")
+				: mapdb.createTreeMap("postings").keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+						.valueSerializer(Serializer.LONG).make();
+		databases.put(lang, mapdb);
+		frequencies.put(lang, mapdb.getTreeMap("df"));
+		maps.put(lang, postings);
+	}
+
+	/**
+	 * Adds the trigrams of several segments. Postings are kept in memory and
+	 * written in (trigram, id) order, so that each bitmap is updated once, when
+	 * the index is committed or searched, when a segment is removed or when
+	 * {@link #PENDING_SIZE} postings of a language are waiting.
+	 */
+	synchronized void add(String lang, int[][] grams, int[] ids) throws IOException {
+		getIndex(lang);
+		long[] buffer = pending.get(lang);
+		int size = pendingSizes.getOrDefault(lang, 0);
+		for (int i = 0; i < grams.length; i++) {
+			if (buffer == null || size + grams[i].length > buffer.length) {
+				buffer = buffer == null ? new long[Math.max(1024, grams[i].length)]
+						: Arrays.copyOf(buffer, Math.max(size + grams[i].length, buffer.length * 2));
+				pending.put(lang, buffer);
+			}
+			for (int j = 0; j < grams[i].length; j++) {
+				buffer[size++] = ((long) grams[i][j] << 32) | (ids[i] & 0xFFFFFFFFL);
+			}
+		}
+		pendingSizes.put(lang, size);
+		if (size >= PENDING_SIZE) {
+			flush(lang);
+		}
+	}
+
+	/**
+	 * Writes the postings of a language added since the last flush.
+	 */
+	private synchronized void flush(String lang) {
+		long[] postings = pending.remove(lang);
+		Integer size = pendingSizes.remove(lang);
+		if (postings == null) {
+			return;
+		}
+		BTreeMap<Long, Long> index = maps.get(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		Arrays.sort(postings, 0, size);
+		int added = 0;
+		long bits = 0;
+		for (int i = 0; i < size; i++) {
+			int gram = (int) (postings[i] >> 32);
+			int id = (int) postings[i];
+			bits |= 1L << (id % BLOCK);
+			boolean lastOfGram = i + 1 == size || (int) (postings[i + 1] >> 32) != gram;
+			if (lastOfGram || (int) postings[i + 1] / BLOCK != id / BLOCK) {
+				long key = getKey(gram, id / BLOCK);
+				Long old = index.get(key);
+				long value = old != null ? old | bits : bits;
+				if (old == null || value != old) {
+					index.put(key, value);
+					added += Long.bitCount(old != null ? value & ~old : value);
+				}
+				bits = 0;
+			}
+			if (lastOfGram && added > 0) {
+				FuzzyIndex.updateFrequency(df, gram, added);
+				added = 0;
+			}
+		}
+	}
+
+	synchronized void remove(String lang, int[] grams, int id) throws IOException {
+		BTreeMap<Long, Long> index = getIndex(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		// the segment may still be waiting
+		flush(lang);
+		long bit = 1L << (id % BLOCK);
+		for (int i = 0; i < grams.length; i++) {
+			long key = getKey(grams[i], id / BLOCK);
+			Long old = index.get(key);
+			if (old != null && (old & bit) != 0) {
+				if (old == bit) {
+					index.remove(key);
+				} else {
+					index.put(key, old & ~bit);
+				}
+				FuzzyIndex.updateFrequency(df, grams[i], -1);
+			}
+		}
+	}
+
+	/**
+	 * Returns, in ascending order, the docIds of the segments that have all the
+	 * given trigrams. Bitmaps are read as the docIds are requested: the blocks
+	 * of the rarest trigram are walked and each one is intersected with the
+	 * same block of the others, in order of frequency, skipping to the next
+	 * block that the other trigram has when one is missing. A search that stops
+	 * after a few matches does not read whole lists of common trigrams.
+	 */
+	Iterator<Integer> getCandidates(String lang, int[] grams) throws IOException {
+		BTreeMap<Long, Long> index = getIndex(lang);
+		flush(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		int[] ordered = Arrays.copyOf(grams, grams.length);
+		int[] counts = new int[ordered.length];
+		for (int i = 0; i < ordered.length; i++) {
+			Integer count = df.get(ordered[i]);
+			if (count == null) {
+				return Collections.emptyIterator();
+			}
+			counts[i] = count;
+		}
+		NGrams.sortByFrequency(ordered, counts);
+		// candidates are verified against the text; looking them up in the lists
+		// of common trigrams costs more than it saves
+		int used = Math.min(ordered.length, MAX_LOOKUPS);
+		return new Iterator<Integer>() {
+
+			// first block of the rarest trigram not read yet
+			private int block;
+			// docIds of the last block read not returned yet
+			private long bits;
+			private int base;
+			private boolean done = used == 0;
+
+			@Override
+			public boolean hasNext() {
+				while (bits == 0 && !done) {
+					Map.Entry<Long, Long> entry = index.ceilingEntry(getKey(ordered[0], block));
+					if (entry == null || (int) (entry.getKey() >> 32) != ordered[0]) {
+						done = true;
+						break;
+					}
+					int current = entry.getKey().intValue();
+					long found = entry.getValue();
+					block = current + 1;
+					for (int i = 1; i < used && found != 0; i++) {
+						Long other = index.get(getKey(ordered[i], current));
+						if (other != null) {
+							found &= other;
+							continue;
+						}
+						Long next = index.ceilingKey(getKey(ordered[i], current));
+						if (next == null || (int) (next >> 32) != ordered[i]) {
+							done = true;
+						} else {
+							// no block below this one has both trigrams
+							block = next.intValue();
+						}
+						found = 0;
+					}
+					bits = found;
+					base = current * BLOCK;
+				}
+				return bits != 0;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int bit = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				return base + bit;
+			}
+		};
+	}
+
+	/**
+	 * Replaces the index of a language with one built from the stored pure
+	 * text of its segments. Postings are sorted in run files in {@code runs},
+	 * keeping at most {@code maxMemory} bytes in memory, and the trees are
+	 * built bottom-up with the MapDB data pump in a file opened without
+	 * write-ahead log. The index is marked complete when written.
+	 */
+	synchronized void build(String lang, ITuvDatabase tuvs, File runs, long maxMemory) throws IOException {
+		DB old = databases.remove(lang);
+		if (old != null) {
+			old.close();
+		}
+		maps.remove(lang);
+		frequencies.remove(lang);
+		pending.remove(lang);
+		pendingSizes.remove(lang);
+		File file = new File(folder, PREFIX + lang);
+		TuvDatabase.deleteFiles(file);
+		SortedRuns postings = new SortedRuns(runs, PREFIX + lang, false, maxMemory);
+		try {
+			Iterator<Integer> it = tuvs.getKeySet(lang).iterator();
+			while (it.hasNext()) {
+				int id = it.next();
+				String puretext = tuvs.getPureText(lang, id);
+				if (puretext == null) {
+					continue;
+				}
+				int[] grams = getGrams(puretext);
+				for (int i = 0; i < grams.length; i++) {
+					postings.add((long) grams[i] << 32 | id);
+				}
+			}
+			DB mapdb = options.withoutLog().maker(file).make();
+			SortedRuns.Cursor cursor = postings.cursor();
+			try {
+				BlockSource source = new BlockSource(SortedRuns.distinctKeys(cursor));
+				mapdb.createTreeMap("postings").keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+						.valueSerializer(Serializer.LONG).pumpSource(source).make();
+				mapdb.createTreeMap("df").pumpSource(source.getFrequencies()).make();
+				Atomic.Boolean complete = mapdb.getAtomicBoolean("complete");
+				mapdb.commit();
+				complete.set(true);
+				mapdb.commit();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				cursor.close();
+				mapdb.close();
+			}
+		} finally {
+			postings.delete();
+		}
+		openIndex(lang);
+	}
+
+	/**
+	 * Deletes the index files of all languages.
+	 */
+	static void delete(File folder) throws IOException {
+		File[] files = folder.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (files[i].getName().startsWith(PREFIX)) {
+				Files.delete(files[i].toPath());
+			}
+		}
+	}
+
+	synchronized void commit() {
+		Iterator<String> langs = pending.keySet().iterator();
+		while (langs.hasNext()) {
+			flush(langs.next());
+		}
+		Iterator<DB> it = databases.values().iterator();
+		while (it.hasNext()) {
+			it.next().commit();
+		}
+	}
+
+	synchronized void close() {
+		commit();
+		Iterator<DB> it = databases.values().iterator();
+		while (it.hasNext()) {
+			it.next().close();
+		}
+		databases.clear();
+		maps.clear();
+		frequencies.clear();
+	}
+
+	/**
+	 * Groups distinct (trigram, id) postings, read in descending order, into
+	 * bitmaps in the same order and counts the docIds of each trigram.
+	 */
+	private static class BlockSource implements Iterator<Fun.Tuple2<Long, Long>> {
+
+		private PrimitiveIterator.OfLong postings;
+		private long[] frequencies = new long[1024];
+		private int size;
+		private long posting;
+		private boolean read;
+
+		BlockSource(PrimitiveIterator.OfLong postings) {
+			this.postings = postings;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return read || postings.hasNext();
+		}
+
+		@Override
+		public Fun.Tuple2<Long, Long> next() {
+			if (!read) {
+				posting = postings.nextLong();
+			}
+			int gram = (int) (posting >> 32);
+			int block = (int) posting / BLOCK;
+			long bits = 0;
+			read = true;
+			while (read && (int) (posting >> 32) == gram && (int) posting / BLOCK == block) {
+				bits |= 1L << ((int) posting % BLOCK);
+				count(gram);
+				read = postings.hasNext();
+				if (read) {
+					posting = postings.nextLong();
+				}
+			}
+			return Fun.t2(getKey(gram, block), bits);
+		}
+
+		private void count(int gram) {
+			if (size > 0 && (int) (frequencies[size - 1] >> 32) == gram) {
+				frequencies[size - 1]++;
+				return;
+			}
+			if (size == frequencies.length) {
+				frequencies = Arrays.copyOf(frequencies, size * 2);
+			}
+			frequencies[size++] = (long) gram << 32 | 1;
+		}
+
+		/**
+		 * Returns the (trigram, frequency) pairs of the postings read, in
+		 * descending order.
+		 */
+		Iterator<Fun.Tuple2<Integer, Integer>> getFrequencies() {
+			return new Iterator<Fun.Tuple2<Integer, Integer>>() {
+
+				private int position;
+
+				@Override
+				public boolean hasNext() {
+					return position < size;
+				}
+
+				@Override
+				public Fun.Tuple2<Integer, Integer> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					long entry = frequencies[position++];
+					return Fun.t2((int) (entry >> 32), (int) entry);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only copy of the segments of a frozen memory, with one memory-mapped
+ * file per language. Each file starts with a header followed by the UTF-8
+ * texts, the sorted docIds, the offset of each docId with the lengths of its
+ * pure text and segment and the hash codes used for exact matches, sorted,
+ * with their docIds. Files are only read, so any number of threads and
+ * processes can share them without locking.
+ * <p>
+ * A file is mapped in chunks of 1 GB, as one mapping cannot exceed 2 GB. The
+ * texts of a segment are padded so that they never cross a chunk boundary and
+ * the arrays that follow are aligned to 8 bytes.
+ */
+public class FrozenTuvDatabase implements ITuvDatabase {
+
+	private static final String EXTENSION = ".tuv";
+	private static final int MAGIC = 0x544D5456;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1l << CHUNK_BITS;
+
+	private File folder;
+	private Map<String, Texts> texts;
+
+	public FrozenTuvDatabase(File folder) {
+		this.folder = folder;
+		texts = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Writes the segments of a language to a folder, in the format read by this
+	 * class.
+	 */
+	public static void write(File folder, String lang, ITuvDatabase source) throws IOException {
+		File file = new File(folder, lang + EXTENSION);
+		Set<Integer> keys = source.getKeySet(lang);
+		int[] ids = new int[keys.size()];
+		long[] starts = new long[ids.length];
+		int[] lengths = new int[ids.length * 2];
+		long[] hashes = new long[ids.length];
+		int count = 0;
+		long size = HEADER_SIZE;
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			output.write(new byte[HEADER_SIZE]);
+			Iterator<Integer> it = keys.iterator();
+			while (it.hasNext() && count < ids.length) {
+				int id = it.next();
+				String[] tuv = source.getTuv(lang, id);
+				if (tuv == null) {
+					continue;
+				}
+				String puretext = tuv[0];
+				byte[] pure = puretext.getBytes(StandardCharsets.UTF_8);
+				byte[] segment = tuv[1].getBytes(StandardCharsets.UTF_8);
+				long length = (long) pure.length + segment.length;
+				if (length > CHUNK_SIZE) {
+					MessageFormat mf = new MessageFormat("Segment {0} is too large to freeze.");
+					throw new IOException(mf.format(new String[] { String.valueOf(id) }));
+				}
+				if ((size & (CHUNK_SIZE - 1)) + length > CHUNK_SIZE) {
+					size = pad(output, size, CHUNK_SIZE);
+				}
+				ids[count] = id;
+				starts[count] = size;
+				lengths[count * 2] = pure.length;
+				lengths[count * 2 + 1] = segment.length;
+				hashes[count] = ((long) puretext.toLowerCase().hashCode() << 32) | (id & 0xFFFFFFFFL);
+				output.write(pure);
+				output.write(segment);
+				size += length;
+				count++;
+			}
+			Arrays.sort(hashes, 0, count);
+			size = pad(output, size, 8);
+			long idsOffset = size;
+			for (int i = 0; i < count; i++) {
+				output.writeInt(ids[i]);
+			}
+			size = pad(output, size + count * 4l, 8);
+			long offsetsOffset = size;
+			for (int i = 0; i < count; i++) {
+				output.writeLong(starts[i]);
+				output.writeInt(lengths[i * 2]);
+				output.writeInt(lengths[i * 2 + 1]);
+			}
+			long hashesOffset = size + count * 16l;
+			for (int i = 0; i < count; i++) {
+				output.writeInt((int) (hashes[i] >> 32));
+			}
+			for (int i = 0; i < count; i++) {
+				output.writeInt((int) hashes[i]);
+			}
+			output.flush();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(count);
+				raf.writeInt(0);
+				raf.writeLong(idsOffset);
+				raf.writeLong(offsetsOffset);
+				raf.writeLong(hashesOffset);
+				raf.getFD().sync();
+			}
+		}
+	}
+
+	/**
+	 * Writes zeros up to the next multiple of {@code alignment} and returns the
+	 * new size.
+	 */
+	private static long pad(DataOutputStream output, long size, long alignment) throws IOException {
+		long aligned = (size + alignment - 1) & -alignment;
+		byte[] zeros = new byte[(int) Math.min(aligned - size, 64 * 1024)];
+		for (long written = size; written < aligned; written += zeros.length) {
+			output.write(zeros, 0, (int) Math.min(zeros.length, aligned - written));
+		}
+		return aligned;
+	}
+
+	private Texts getTexts(String lang) throws IOException {
+		Texts result = texts.get(lang);
+		if (result == null) {
+			result = openTexts(lang);
+		}
+		return result;
+	}
+
+	private synchronized Texts openTexts(String lang) throws IOException {
+		Texts result = texts.get(lang);
+		if (result == null) {
+			result = new Texts(new File(folder, lang + EXTENSION));
+			texts.put(lang, result);
+		}
+		return result;
+	}
+
+	@Override
+	public void store(String lang, int id, String puretext, String seg) throws IOException {
+		throw new IOException("Frozen segments cannot be modified.");
+	}
+
+	@Override
+	public void remove(String lang, int id) throws IOException {
+		throw new IOException("Frozen segments cannot be modified.");
+	}
+
+	@Override
+	public String getPureText(String lang, int id) throws IOException {
+		Texts data = getTexts(lang);
+		int index = data.find(id);
+		return index == -1 ? null : data.getString(index * 2);
+	}
+
+	@Override
+	public String getSegText(String lang, int id) throws IOException {
+		Texts data = getTexts(lang);
+		int index = data.find(id);
+		return index == -1 ? null : data.getString(index * 2 + 1);
+	}
+
+	@Override
+	public String[] getTuv(String lang, int id) throws IOException {
+		Texts data = getTexts(lang);
+		int index = data.find(id);
+		return index == -1 ? null : new String[] { data.getString(index * 2), data.getString(index * 2 + 1) };
+	}
+
+	@Override
+	public String[] getMatch(String srcLang, String tgtLang, int id) throws IOException {
+		Texts source = getTexts(srcLang);
+		int index = source.find(id);
+		if (index == -1) {
+			return null;
+		}
+		Texts target = getTexts(tgtLang);
+		int targetIndex = target.find(id);
+		if (targetIndex == -1) {
+			return null;
+		}
+		return new String[] { source.getString(index * 2), source.getString(index * 2 + 1),
+				target.getString(targetIndex * 2 + 1) };
+	}
+
+	@Override
+	public Set<Integer> getPerfectMatches(String lang, String searchStr) throws IOException {
+		return getTexts(lang).getMatches(searchStr.toLowerCase().hashCode());
+	}
+
+	@Override
+	public Set<Integer> getKeySet(String lang) throws IOException {
+		return getTexts(lang).keySet;
+	}
+
+	@Override
+	public void commit() {
+		// nothing to commit
+	}
+
+	@Override
+	public void close() {
+		texts.clear();
+	}
+
+	/**
+	 * Mapped file of one language. A language without file has no segments.
+	 */
+	private static class Texts {
+
+		MappedByteBuffer[] data;
+		int count;
+		long ids;
+		long offsets;
+		long hashes;
+		Set<Integer> keySet;
+
+		Texts(File file) throws IOException {
+			data = new MappedByteBuffer[0];
+			if (file.exists()) {
+				try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+					long length = raf.length();
+					data = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+					for (int i = 0; i < data.length; i++) {
+						long start = i * CHUNK_SIZE;
+						data[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start,
+								Math.min(CHUNK_SIZE, length - start));
+					}
+				}
+				if (data.length == 0 || data[0].capacity() < HEADER_SIZE || data[0].getInt(0) != MAGIC
+						|| data[0].getInt(4) != VERSION) {
+					MessageFormat mf = new MessageFormat("Frozen segments file {0} is damaged.");
+					throw new IOException(mf.format(new String[] { file.getName() }));
+				}
+				count = data[0].getInt(8);
+				ids = data[0].getLong(16);
+				offsets = data[0].getLong(24);
+				hashes = data[0].getLong(32);
+			}
+			keySet = new AbstractSet<>() {
+
+				@Override
+				public Iterator<Integer> iterator() {
+					return new Iterator<>() {
+						int next;
+
+						@Override
+						public boolean hasNext() {
+							return next < count;
+						}
+
+						@Override
+						public Integer next() {
+							if (next >= count) {
+								throw new NoSuchElementException();
+							}
+							return getInt(ids + 4l * next++);
+						}
+					};
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return o instanceof Integer && find((Integer) o) != -1;
+				}
+
+				@Override
+				public int size() {
+					return count;
+				}
+			};
+		}
+
+		// values are aligned, so none crosses a chunk boundary
+		int getInt(long position) {
+			return data[(int) (position >>> CHUNK_BITS)].getInt((int) (position & (CHUNK_SIZE - 1)));
+		}
+
+		long getLong(long position) {
+			return data[(int) (position >>> CHUNK_BITS)].getLong((int) (position & (CHUNK_SIZE - 1)));
+		}
+
+		// binary search in the docIds, returns the index or -1
+		int find(int id) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = getInt(ids + mid * 4l);
+				if (value < id) {
+					low = mid + 1;
+				} else if (value > id) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		// even texts are pure texts, odd texts are segments
+		String getString(int text) {
+			long entry = offsets + (text >>> 1) * 16l;
+			long start = getLong(entry);
+			int length = getInt(entry + 8);
+			if ((text & 1) == 1) {
+				start += length;
+				length = getInt(entry + 12);
+			}
+			byte[] bytes = new byte[length];
+			// a duplicate has its own position, so threads do not interfere
+			ByteBuffer buffer = data[(int) (start >>> CHUNK_BITS)].duplicate();
+			buffer.position((int) (start & (CHUNK_SIZE - 1)));
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		Set<Integer> getMatches(int hash) {
+			Set<Integer> result = new TreeSet<>();
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (getInt(hashes + mid * 4l) < hash) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			for (int i = low; i < count && getInt(hashes + i * 4l) == hash; i++) {
+				result.add(getInt(hashes + (count + (long) i) * 4));
+			}
+			return result;
+		}
+	}
+}
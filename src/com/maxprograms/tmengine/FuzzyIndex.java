@@ -13,43 +13,343 @@ package com.maxprograms.tmengine;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
-import org.mapdb.DBMaker;
 import org.mapdb.Fun;
 
-public class FuzzyIndex {
+public class FuzzyIndex implements IFuzzyIndex {
 
-	private Map<String, NavigableSet<Fun.Tuple2<Integer, String>>> maps;
+	private static final Logger LOGGER = System.getLogger(FuzzyIndex.class.getName());
+
+	public static final String NAME = "tree";
+
+	private Map<String, NavigableSet<Fun.Tuple2<Integer, Integer>>> maps;
+	private Map<String, BTreeMap<Integer, Integer>> frequencies;
+	private Map<String, BTreeMap<Integer, Integer>> lengthMaps;
+	private Map<String, SegmentLengths> lengths;
+	private Map<String, INGramStrategy> strategies;
 	private Map<String, DB> databases;
 	private File folder;
+	private StoreOptions options;
 
 	public FuzzyIndex(File folder) {
+		this(folder, StoreOptions.DEFAULT);
+	}
+
+	FuzzyIndex(File folder, StoreOptions options) {
 		this.folder = folder;
+		this.options = options;
 		databases = new ConcurrentHashMap<>();
 		maps = new ConcurrentHashMap<>();
+		frequencies = new ConcurrentHashMap<>();
+		lengthMaps = new ConcurrentHashMap<>();
+		lengths = new ConcurrentHashMap<>();
+		strategies = new ConcurrentHashMap<>();
 	}
 
-	NavigableSet<Fun.Tuple2<Integer, String>> getIndex(String lang) throws IOException {
-		if (!maps.containsKey(lang)) {
-			DB mapdb = null;
-			try {
-				mapdb = DBMaker.newFileDB(new File(folder, "index_" + lang)).closeOnJvmShutdown().make();
-			} catch (Error ioe) {
-				throw new IOException(ioe.getMessage());
+	/**
+	 * Checks if a memory folder holds an index of this type.
+	 */
+	public static boolean exists(File folder) {
+		String[] names = folder.list();
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].startsWith("index_")) {
+					return true;
+				}
 			}
-			NavigableSet<Fun.Tuple2<Integer, String>> multiMap = mapdb.getTreeSet(lang);
-			databases.put(lang, mapdb);
-			maps.put(lang, multiMap);
+		}
+		return false;
+	}
+
+	private NavigableSet<Fun.Tuple2<Integer, Integer>> getIndex(String lang) throws IOException {
+		if (!maps.containsKey(lang)) {
+			openIndex(lang);
 		}
 		return maps.get(lang);
 	}
 
+	/**
+	 * Returns the n-gram strategy that built the index for a language. Indexes
+	 * created before strategies were recorded use the default strategy.
+	 */
+	@Override
+	public INGramStrategy getStrategy(String lang) throws IOException {
+		if (!strategies.containsKey(lang)) {
+			openIndex(lang);
+		}
+		return strategies.get(lang);
+	}
+
+	private synchronized void openIndex(String lang) throws IOException {
+		if (maps.containsKey(lang)) {
+			return;
+		}
+		DB mapdb = null;
+		try {
+			mapdb = options.maker(new File(folder, "index_" + lang)).make();
+		} catch (Error ioe) {
+			throw new IOException(ioe.getMessage());
+		}
+		NavigableSet<Fun.Tuple2<Integer, Integer>> multiMap = mapdb.getTreeSet("postings");
+		INGramStrategy expected = NGrams.getStrategy(lang);
+		Atomic.String recorded = mapdb.getAtomicString("ngrams");
+		if (recorded.get().isEmpty()) {
+			recorded.set(multiMap.isEmpty() ? expected.getName() : NGrams.getDefaultStrategy().getName());
+			mapdb.commit();
+		}
+		INGramStrategy strategy = NGrams.getStrategyByName(recorded.get());
+		if (strategy == null) {
+			mapdb.close();
+			MessageFormat mf = new MessageFormat("Fuzzy index for {0} was built with unknown n-gram strategy {1}.");
+			throw new IOException(mf.format(new String[] { lang, recorded.get() }));
+		}
+		if (!strategy.getName().equals(expected.getName())) {
+			MessageFormat mf = new MessageFormat(
+					"Fuzzy index for {0} was built with {1} n-grams instead of {2}; rebuild the memory to use {2}.");
+			LOGGER.log(Level.WARNING, mf.format(new String[] { lang, strategy.getName(), expected.getName() }));
+		}
+		boolean countFrequencies = !mapdb.exists("df") && !multiMap.isEmpty();
+		BTreeMap<Integer, Integer> df = mapdb.getTreeMap("df");
+		if (countFrequencies) {
+			// index built before document frequencies were kept
+			countFrequencies(multiMap, df);
+			mapdb.commit();
+		}
+		if (!mapdb.exists("lengths") && !multiMap.isEmpty()) {
+			MessageFormat mf = new MessageFormat(
+					"Fuzzy index for {0} has no segment lengths; rebuild the memory to filter candidates by length.");
+			LOGGER.log(Level.INFO, mf.format(new String[] { lang }));
+		}
+		BTreeMap<Integer, Integer> lengthMap = mapdb.getTreeMap("lengths");
+		SegmentLengths segLengths = new SegmentLengths();
+		Iterator<Map.Entry<Integer, Integer>> entries = lengthMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Integer, Integer> entry = entries.next();
+			segLengths.set(entry.getKey(), entry.getValue());
+		}
+		databases.put(lang, mapdb);
+		strategies.put(lang, strategy);
+		lengthMaps.put(lang, lengthMap);
+		lengths.put(lang, segLengths);
+		frequencies.put(lang, df);
+		maps.put(lang, multiMap);
+	}
+
+	private static void countFrequencies(NavigableSet<Fun.Tuple2<Integer, Integer>> index,
+			BTreeMap<Integer, Integer> df) {
+		Integer current = null;
+		int count = 0;
+		Iterator<Fun.Tuple2<Integer, Integer>> it = index.iterator();
+		while (it.hasNext()) {
+			Integer ngram = it.next().a;
+			if (!ngram.equals(current)) {
+				if (current != null) {
+					df.put(current, count);
+				}
+				current = ngram;
+				count = 0;
+			}
+			count++;
+		}
+		if (current != null) {
+			df.put(current, count);
+		}
+	}
+
+	@Override
+	public void add(String lang, int[] ngrams, int id, int length) throws IOException {
+		NavigableSet<Fun.Tuple2<Integer, Integer>> index = getIndex(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		for (int i = 0; i < ngrams.length; i++) {
+			if (index.add(Fun.t2(ngrams[i], id))) {
+				updateFrequency(df, ngrams[i], 1);
+			}
+		}
+		lengthMaps.get(lang).put(id, length);
+		lengths.get(lang).set(id, length);
+	}
+
+	/**
+	 * Adds the postings of all segments in (n-gram, id) order, so that the tree
+	 * is walked once from left to right, and updates the frequency of each
+	 * n-gram once.
+	 */
+	@Override
+	public void add(String lang, int[][] ngrams, int[] ids, int[] segLengths) throws IOException {
+		NavigableSet<Fun.Tuple2<Integer, Integer>> index = getIndex(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		int total = 0;
+		for (int i = 0; i < ngrams.length; i++) {
+			total += ngrams[i].length;
+		}
+		long[] postings = new long[total];
+		int size = 0;
+		for (int i = 0; i < ngrams.length; i++) {
+			for (int j = 0; j < ngrams[i].length; j++) {
+				postings[size++] = ((long) ngrams[i][j] << 32) | (ids[i] & 0xFFFFFFFFL);
+			}
+		}
+		Arrays.sort(postings);
+		int added = 0;
+		for (int i = 0; i < size; i++) {
+			int ngram = (int) (postings[i] >> 32);
+			if (index.add(Fun.t2(ngram, (int) postings[i]))) {
+				added++;
+			}
+			if (added > 0 && (i + 1 == size || (int) (postings[i + 1] >> 32) != ngram)) {
+				updateFrequency(df, ngram, added);
+				added = 0;
+			}
+		}
+		BTreeMap<Integer, Integer> lengthMap = lengthMaps.get(lang);
+		SegmentLengths langLengths = lengths.get(lang);
+		for (int i = 0; i < ids.length; i++) {
+			lengthMap.put(ids[i], segLengths[i]);
+			langLengths.set(ids[i], segLengths[i]);
+		}
+	}
+
+	/**
+	 * Writes the index of a language that has no postings from the postings
+	 * sorted in {@code postings}, as (n-gram &lt;&lt; 32 | id) keys, and the
+	 * segment lengths indexed by id, building the trees bottom-up with the MapDB
+	 * data pump in a file opened without write-ahead log.
+	 */
+	synchronized void load(String lang, SortedRuns postings, int[] segLengths) throws IOException {
+		INGramStrategy strategy = getStrategy(lang);
+		if (!maps.get(lang).isEmpty()) {
+			MessageFormat mf = new MessageFormat("Fuzzy index for {0} is not empty.");
+			throw new IOException(mf.format(new String[] { lang }));
+		}
+		databases.remove(lang).close();
+		maps.remove(lang);
+		File file = new File(folder, "index_" + lang);
+		TuvDatabase.deleteFiles(file);
+		DB mapdb = options.withoutLog().maker(file).make();
+		SortedRuns.Cursor cursor = postings.cursor();
+		try {
+			mapdb.getAtomicString("ngrams").set(strategy.getName());
+			PostingSource source = new PostingSource(SortedRuns.distinctKeys(cursor));
+			mapdb.createTreeSet("postings").pumpSource(source).make();
+			mapdb.createTreeMap("df").pumpSource(source.getFrequencies()).make();
+			mapdb.createTreeMap("lengths").pumpSource(new Iterator<Fun.Tuple2<Integer, Integer>>() {
+
+				private int id = segLengths.length;
+
+				@Override
+				public boolean hasNext() {
+					while (id > 0 && segLengths[id - 1] == 0) {
+						id--;
+					}
+					return id > 0;
+				}
+
+				@Override
+				public Fun.Tuple2<Integer, Integer> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					id--;
+					return Fun.t2(id, segLengths[id]);
+				}
+			}).make();
+			mapdb.commit();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			cursor.close();
+			mapdb.close();
+		}
+		openIndex(lang);
+	}
+
+	@Override
+	public void remove(String lang, int[] ngrams, int id) throws IOException {
+		NavigableSet<Fun.Tuple2<Integer, Integer>> index = getIndex(lang);
+		BTreeMap<Integer, Integer> df = frequencies.get(lang);
+		for (int i = 0; i < ngrams.length; i++) {
+			if (index.remove(Fun.t2(ngrams[i], id))) {
+				updateFrequency(df, ngrams[i], -1);
+			}
+		}
+		lengthMaps.get(lang).remove(id);
+		lengths.get(lang).set(id, 0);
+	}
+
+	static void updateFrequency(BTreeMap<Integer, Integer> df, int ngram, int delta) {
+		while (true) {
+			Integer old = df.get(ngram);
+			if (old == null) {
+				if (delta < 0 || df.putIfAbsent(ngram, delta) == null) {
+					return;
+				}
+			} else if (old + delta <= 0) {
+				if (df.remove(ngram, old)) {
+					return;
+				}
+			} else if (df.replace(ngram, old, old + delta)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int getFrequency(String lang, int ngram) throws IOException {
+		if (!frequencies.containsKey(lang)) {
+			openIndex(lang);
+		}
+		Integer df = frequencies.get(lang).get(ngram);
+		return df != null ? df : 0;
+	}
+
+	@Override
+	public int[] getPostings(String lang, int ngram) throws IOException {
+		int[] result = new int[getFrequency(lang, ngram)];
+		int size = 0;
+		Iterator<Integer> it = Fun.filter(getIndex(lang), ngram).iterator();
+		while (it.hasNext()) {
+			if (size == result.length) {
+				result = Arrays.copyOf(result, size * 2 + 1);
+			}
+			result[size++] = it.next();
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	@Override
+	public int[] getPostings(String lang, int ngram, int minLength, int maxLength) throws IOException {
+		return filterByLength(lang, getPostings(lang, ngram), minLength, maxLength);
+	}
+
+	@Override
+	public int[] filterByLength(String lang, int[] ids, int minLength, int maxLength) throws IOException {
+		if (!lengths.containsKey(lang)) {
+			openIndex(lang);
+		}
+		return lengths.get(lang).filter(ids, minLength, maxLength);
+	}
+
+	@Override
+	public boolean contains(String lang, int ngram, int id) throws IOException {
+		return getIndex(lang).contains(Fun.t2(ngram, id));
+	}
+
+	@Override
 	public void commit() {
 		Set<String> set = databases.keySet();
 		Iterator<String> keys = set.iterator();
@@ -59,6 +359,7 @@ public class FuzzyIndex {
 		}
 	}
 
+	@Override
 	public void close() {
 		Set<String> keys = databases.keySet();
 		Iterator<String> it = keys.iterator();
@@ -69,4 +370,63 @@ public class FuzzyIndex {
 		}
 	}
 
+	/**
+	 * Returns distinct postings from sorted keys and counts the document
+	 * frequency of their n-grams.
+	 */
+	private static class PostingSource implements Iterator<Fun.Tuple2<Integer, Integer>> {
+
+		private PrimitiveIterator.OfLong keys;
+		private long[] frequencies = new long[1024];
+		private int size;
+
+		PostingSource(PrimitiveIterator.OfLong keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return keys.hasNext();
+		}
+
+		@Override
+		public Fun.Tuple2<Integer, Integer> next() {
+			long key = keys.nextLong();
+			int ngram = (int) (key >> 32);
+			if (size > 0 && (int) (frequencies[size - 1] >> 32) == ngram) {
+				frequencies[size - 1]++;
+			} else {
+				if (size == frequencies.length) {
+					frequencies = Arrays.copyOf(frequencies, size * 2);
+				}
+				frequencies[size++] = (long) ngram << 32 | 1;
+			}
+			return Fun.t2(ngram, (int) key);
+		}
+
+		/**
+		 * Returns the (n-gram, frequency) pairs of the postings read, in the same
+		 * order.
+		 */
+		Iterator<Fun.Tuple2<Integer, Integer>> getFrequencies() {
+			return new Iterator<Fun.Tuple2<Integer, Integer>>() {
+
+				private int position;
+
+				@Override
+				public boolean hasNext() {
+					return position < size;
+				}
+
+				@Override
+				public Fun.Tuple2<Integer, Integer> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					long entry = frequencies[position++];
+					return Fun.t2((int) (entry >> 32), (int) entry);
+				}
+			};
+		}
+	}
 }
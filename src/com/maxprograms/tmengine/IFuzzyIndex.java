@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+
+public interface IFuzzyIndex {
+
+	/**
+	 * Returns the n-gram strategy that built the index for a language.
+	 */
+	public abstract INGramStrategy getStrategy(String lang) throws IOException;
+
+	/**
+	 * Adds the n-grams of a segment, recording its length as returned by
+	 * {@link MatchQuality#length(String)}.
+	 */
+	public abstract void add(String lang, int[] ngrams, int id, int length) throws IOException;
+
+	/**
+	 * Same as {@link #add(String, int[], int, int)} for several segments of the
+	 * same language, with {@code ngrams[i]} and {@code lengths[i]} belonging to
+	 * {@code ids[i]}.
+	 */
+	public abstract void add(String lang, int[][] ngrams, int[] ids, int[] lengths) throws IOException;
+
+	public abstract void remove(String lang, int[] ngrams, int id) throws IOException;
+
+	/**
+	 * Returns the number of TUs that contain an n-gram. Only used to decide the
+	 * order in which n-grams are checked, so it may be an estimate.
+	 */
+	public abstract int getFrequency(String lang, int ngram) throws IOException;
+
+	/**
+	 * Returns the ids of the TUs that contain an n-gram, in ascending order.
+	 */
+	public abstract int[] getPostings(String lang, int ngram) throws IOException;
+
+	/**
+	 * Same as {@link #getPostings(String, int)}, leaving out the TUs whose
+	 * recorded length is outside {@code minLength} and {@code maxLength}.
+	 */
+	public abstract int[] getPostings(String lang, int ngram, int minLength, int maxLength) throws IOException;
+
+	/**
+	 * Removes from a list of TU ids those whose recorded length is outside
+	 * {@code minLength} and {@code maxLength}. The list may be modified.
+	 */
+	public abstract int[] filterByLength(String lang, int[] ids, int minLength, int maxLength) throws IOException;
+
+	public abstract boolean contains(String lang, int ngram, int id) throws IOException;
+
+	public abstract void commit() throws IOException;
+
+	public abstract void close() throws IOException;
+}
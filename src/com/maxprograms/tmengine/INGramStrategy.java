@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+public interface INGramStrategy {
+
+	/**
+	 * Name recorded in each fuzzy index to identify the strategy that built it.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Returns the sorted, distinct hash codes of the n-grams of a string.
+	 */
+	public abstract int[] getNGrams(String string);
+}
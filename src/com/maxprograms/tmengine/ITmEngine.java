@@ -23,7 +23,7 @@ import org.xml.sax.SAXException;
 
 import com.maxprograms.xml.Element;
 
-public interface ITmEngine {
+public interface ITmEngine extends ITuStore {
 
 	public abstract String getType();
 
@@ -37,6 +37,13 @@ public interface ITmEngine {
 	public abstract void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> properties)
 			throws IOException, SAXException, ParserConfigurationException, SQLException;
 
+	/**
+	 * Same as {@link #exportMemory(String, Set, String, Map)}, exporting only the
+	 * TUs accepted by {@code filter}. All TUs are exported when it is null.
+	 */
+	public abstract void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> properties,
+			TuFilter filter) throws IOException, SAXException, ParserConfigurationException, SQLException;
+
 	public abstract void flag(String tuid) throws SQLException;
 
 	public abstract Set<String> getAllClients() throws SQLException;
@@ -50,12 +57,39 @@ public interface ITmEngine {
 	public abstract List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, SQLException;
 
+	/**
+	 * Same as {@link #searchTranslation(String, String, String, int, boolean)},
+	 * keeping only the best {@code maxResults} matches, best first. All matches
+	 * are returned when {@code maxResults} is 0 or less.
+	 */
+	public abstract List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults)
+			throws IOException, SAXException, ParserConfigurationException, SQLException;
+
+	/**
+	 * Same as {@link #searchTranslation(String, String, String, int, boolean, int)},
+	 * only matching the TUs accepted by {@code filter}, or all TUs when it is
+	 * null.
+	 */
+	public abstract List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException, SQLException;
+
 	public abstract List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, SQLException;
 
+	/**
+	 * Same as {@link #concordanceSearch(String, String, int, boolean, boolean)},
+	 * only returning the TUs accepted by {@code filter}, or all TUs when it is
+	 * null.
+	 */
+	public abstract List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException, SQLException;
+
 	public abstract void storeTu(Element tu) throws IOException, SQLException;
 
-	public abstract void commit() throws SQLException;
+	public abstract void commit() throws IOException, SQLException;
 
 	public abstract Element getTu(String tuid)
 			throws IOException, SAXException, ParserConfigurationException, SQLException;
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Receives the TUs read by {@link com.maxprograms.tmx.TMXReader}.
+ */
+public interface ITuStore {
+
+	public abstract void storeTu(Element tu) throws IOException, SQLException;
+
+	public abstract void commit() throws IOException, SQLException;
+
+	/**
+	 * Returns a new policy that decides when the TUs of an import are
+	 * committed.
+	 */
+	public default CommitPolicy createCommitPolicy() {
+		return new CommitPolicy();
+	}
+}
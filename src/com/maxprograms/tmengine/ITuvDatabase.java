@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.util.Set;
+
+public interface ITuvDatabase {
+
+	public abstract void store(String lang, int id, String puretext, String seg) throws IOException;
+
+	public abstract void remove(String lang, int id) throws IOException;
+
+	public abstract String getPureText(String lang, int id) throws IOException;
+
+	public abstract String getSegText(String lang, int id) throws IOException;
+
+	/**
+	 * Returns the pure text and the segment of a docId, or null if the language
+	 * has no segment for it.
+	 */
+	public abstract String[] getTuv(String lang, int id) throws IOException;
+
+	/**
+	 * Returns the source pure text, the source segment and the target segment
+	 * of a docId, or null if it has no segment in one of the languages.
+	 */
+	public abstract String[] getMatch(String srcLang, String tgtLang, int id) throws IOException;
+
+	/**
+	 * Returns the docIds of the segments whose lower case text has the same hash
+	 * code as the lower case search string, in ascending order.
+	 */
+	public abstract Set<Integer> getPerfectMatches(String lang, String searchStr) throws IOException;
+
+	/**
+	 * Returns the docIds of all segments of a language, in ascending order.
+	 */
+	public abstract Set<Integer> getKeySet(String lang) throws IOException;
+
+	public abstract void commit();
+
+	public abstract void close();
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Stores the TUs of a TMX file in three stages: the parser hands each TU to a
+ * pool of workers that compute its texts and n-grams with
+ * {@link MapDbEngine#prepare(Element)}, and a single writer thread stores the
+ * results in parsing order, in batches of up to {@link #BATCH_SIZE} TUs,
+ * committed as decided by the {@link CommitPolicy} of the engine. The
+ * queue between the parser and the writer is bounded, so a fast parser waits
+ * for the writer instead of filling the heap.
+ */
+class ImportPipeline implements ITuStore {
+
+	private static final Logger LOGGER = System.getLogger(ImportPipeline.class.getName());
+
+	static final int BATCH_SIZE = 500;
+
+	private static final Future<MapDbEngine.PreparedTu> END = CompletableFuture.completedFuture(null);
+
+	private MapDbEngine engine;
+	private ExecutorService workers;
+	private BlockingQueue<Future<MapDbEngine.PreparedTu>> queue;
+	private Thread writer;
+	private volatile Throwable failure;
+
+	ImportPipeline(MapDbEngine engine, int workerCount, int queueSize) {
+		this.engine = engine;
+		queue = new ArrayBlockingQueue<>(queueSize);
+		AtomicInteger threads = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, r -> {
+			Thread thread = new Thread(r, "TMX import worker " + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		writer = new Thread(this::write, "TMX import writer");
+		writer.setDaemon(true);
+		writer.setUncaughtExceptionHandler((thread, e) -> failure = e);
+		writer.start();
+	}
+
+	@Override
+	public void storeTu(Element tu) throws IOException {
+		checkFailure();
+		put(workers.submit(() -> engine.prepare(tu)));
+	}
+
+	/**
+	 * Does nothing, the writer commits its own batches.
+	 */
+	@Override
+	public void commit() {
+		// do nothing
+	}
+
+	/**
+	 * Waits until all TUs received are stored and committed and stops the
+	 * threads of the pipeline. Must be called even if parsing failed.
+	 */
+	void finish() throws IOException {
+		try {
+			put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e.getMessage());
+		} finally {
+			workers.shutdownNow();
+		}
+		checkFailure();
+	}
+
+	private void put(Future<MapDbEngine.PreparedTu> future) throws IOException {
+		try {
+			while (!queue.offer(future, 1, TimeUnit.SECONDS)) {
+				// a writer that stopped no longer empties the queue
+				if (!writer.isAlive()) {
+					checkFailure();
+					throw new IOException("TMX import writer stopped.");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure instanceof IOException ? (IOException) failure
+					: new IOException(failure.getMessage(), failure);
+		}
+	}
+
+	private void write() {
+		List<MapDbEngine.PreparedTu> batch = new ArrayList<>();
+		CommitPolicy policy = engine.createCommitPolicy();
+		boolean done = false;
+		while (!done) {
+			Future<MapDbEngine.PreparedTu> future;
+			try {
+				future = queue.take();
+			} catch (InterruptedException e) {
+				failure = e;
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (future == END) {
+				done = true;
+			} else if (failure == null) {
+				// after a failure, keep taking TUs so that the parser does not wait
+				// on a full queue
+				try {
+					batch.add(future.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						// same as failing to store a TU read by TMXReader: skip it
+						LOGGER.log(Level.WARNING, "Error storing TU: " + e.getCause().getMessage());
+					} else {
+						failure = e.getCause();
+					}
+				} catch (InterruptedException e) {
+					failure = e;
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			// a batch is written when full, or earlier if the parser is slower
+			if (failure == null && !batch.isEmpty() && (done || batch.size() == BATCH_SIZE || queue.isEmpty())) {
+				try {
+					engine.store(batch);
+					boolean commit = false;
+					for (int i = 0; i < batch.size(); i++) {
+						commit = policy.stored(batch.get(i).getCharacters()) || commit;
+					}
+					if (commit) {
+						engine.commit();
+					}
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				}
+				batch.clear();
+			}
+		}
+		if (failure == null) {
+			try {
+				engine.commit();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+}
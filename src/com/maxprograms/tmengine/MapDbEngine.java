@@ -11,47 +11,92 @@
  *******************************************************************************/
 package com.maxprograms.tmengine;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.StreamSupport;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.mapdb.Fun;
-import org.mapdb.Fun.Tuple2;
+import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
 import com.maxprograms.tmx.TMXReader;
 import com.maxprograms.tmutils.TMUtils;
 import com.maxprograms.xml.Attribute;
 import com.maxprograms.xml.Element;
-import com.maxprograms.xml.Indenter;
 
 public class MapDbEngine implements ITmEngine, AutoCloseable {
 
 	private static final Logger LOGGER = System.getLogger(MapDbEngine.class.getName());
 
+	// number of fuzzy candidates scored together by one verification task
+	private static final int VERIFY_CHUNK = 256;
+
+	// folder with the read-only copy of a frozen memory
+	private static final String FROZEN = "frozen";
+
+	// present while an import writes without write-ahead log
+	private static final String UNLOGGED = "unlogged";
+
+	// TUs parsed ahead of the one being stored by a TMX import
+	private static final int IMPORT_QUEUE_SIZE = 1000;
+
+	// characters buffered by the writer of a TMX export
+	private static final int EXPORT_BUFFER = 1024 * 1024;
+
+	// shared by all memories, so that concurrent searches compete for the same
+	// threads instead of each one starting its own
+	private static final ForkJoinPool VERIFIERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
 	private String dbname;
 	private File database;
 	private TuDatabase tuDb;
-	private TuvDatabase tuvDb;
-	private FuzzyIndex fuzzyIndex;
+	private ITuvDatabase tuvDb;
+	private TuvDatabase tuvStore;
+	private IFuzzyIndex fuzzyIndex;
+	private ConcordanceIndex concordance;
+	private BulkLoader bulkLoader;
+	private StoreOptions storeOptions;
+	private RecordCache cache;
+	private JSONObject settings;
+	private boolean frozen;
+	// held for reading by operations that use the stores, for writing while an
+	// import reopens them
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
 	private String currProject;
 	private String currSubject;
@@ -61,8 +106,19 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 	private Set<String> tuAttributes;
 
 	private long next;
+	private AtomicLong skippedPostings = new AtomicLong();
+	private String scorer = MatchQuality.getDefaultScorer();
+	private int parallelism = getDefaultParallelism();
 
 	public MapDbEngine(String dbname, String workFolder) throws IOException {
+		this(dbname, workFolder, new JSONObject());
+	}
+
+	/**
+	 * Opens a memory using the settings of its entry in the list of memories,
+	 * which the Create Memory topic of the documentation describes.
+	 */
+	public MapDbEngine(String dbname, String workFolder, JSONObject settings) throws IOException {
 		this.dbname = dbname;
 		tuAttributes = Collections.synchronizedSortedSet(new TreeSet<>());
 		String[] array = new String[] { "tuid", "o-encoding", "datatype", "usagecount", "lastusagedate", "creationtool",
@@ -76,27 +132,299 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 		if (!database.exists()) {
 			database.mkdirs();
 		}
+		this.settings = settings;
+		storeOptions = new StoreOptions(settings);
+		long cacheSize = settings.optLong("cacheSize", 0);
+		if (cacheSize > 0) {
+			cache = new RecordCache(cacheSize * 1024 * 1024);
+		}
+		File partial = new File(database, FROZEN + ".tmp");
+		if (partial.exists()) {
+			// left by an interrupted freeze
+			TMUtils.deleteFolder(partial.getAbsolutePath());
+		}
+		File runs = new File(database, BulkLoader.FOLDER);
+		if (runs.exists()) {
+			// left by an interrupted bulk load
+			TMUtils.deleteFolder(runs.getAbsolutePath());
+		}
+		runs = new File(database, ConcordanceIndex.FOLDER);
+		if (runs.exists()) {
+			// left by an interrupted concordance index build
+			TMUtils.deleteFolder(runs.getAbsolutePath());
+		}
+		File unlogged = new File(database, UNLOGGED);
+		if (unlogged.exists()) {
+			// only the user can tell whether the memory must be imported again
+			MessageFormat mf = new MessageFormat(
+					"Database {0} was not closed after an import without write-ahead log and may be damaged; delete {1} to open it anyway.");
+			throw new IOException(mf.format(new String[] { dbname, unlogged.getAbsolutePath() }));
+		}
+		if (isFrozen(database)) {
+			openFrozen();
+		} else {
+			open();
+		}
+	}
+
+	private static boolean isFrozen(File database) {
+		return new File(database, FROZEN).isDirectory();
+	}
+
+	private void open() throws IOException {
 		try {
-			tuDb = new TuDatabase(database);
+			tuDb = new TuDatabase(database, false, storeOptions);
 		} catch (Exception e) {
 			LOGGER.log(Level.ERROR, e.getMessage(), e);
 			MessageFormat mf = new MessageFormat("TU storage of database {0} is damaged.");
 			throw new IOException(mf.format(new String[] { dbname }));
 		}
+		TuvDatabase tuvs;
 		try {
-			tuvDb = new TuvDatabase(database);
+			tuvs = new TuvDatabase(database, settings.optBoolean("compressSegments", false), storeOptions);
 		} catch (Exception e) {
 			LOGGER.log(Level.ERROR, e.getMessage(), e);
 			MessageFormat mf = new MessageFormat("TUV storage of database {0} is damaged.");
 			throw new IOException(mf.format(new String[] { dbname }));
 		}
+		tuvStore = tuvs;
+		tuvDb = cache != null ? new CachedTuvDatabase(tuvs, cache) : tuvs;
+		boolean migrate = tuDb.needsMigration();
+		if (migrate) {
+			migrate(tuvs);
+		}
+		boolean compressed = CompressedFuzzyIndex.exists(database);
+		String type = settings.optString("fuzzyIndex", compressed ? CompressedFuzzyIndex.NAME : FuzzyIndex.NAME);
+		if (!FuzzyIndex.NAME.equals(type) && !CompressedFuzzyIndex.NAME.equals(type)) {
+			MessageFormat mf = new MessageFormat("Unknown fuzzy index type {0}.");
+			throw new IOException(mf.format(new String[] { type }));
+		}
+		boolean rebuild = FuzzyIndex.NAME.equals(type) ? compressed && !FuzzyIndex.exists(database)
+				: !compressed && FuzzyIndex.exists(database);
+		if (migrate) {
+			// postings hold the old keys
+			deleteFuzzyIndex(FuzzyIndex.NAME);
+			deleteFuzzyIndex(CompressedFuzzyIndex.NAME);
+			rebuild = true;
+		}
 		try {
-			fuzzyIndex = new FuzzyIndex(database);
+			if (FuzzyIndex.NAME.equals(type)) {
+				fuzzyIndex = new FuzzyIndex(database, storeOptions);
+			} else {
+				fuzzyIndex = new CompressedFuzzyIndex(database,
+						settings.optInt("fuzzyFlushSize", CompressedFuzzyIndex.DEFAULT_FLUSH_SIZE),
+						settings.optInt("fuzzyMergeFactor", CompressedFuzzyIndex.DEFAULT_MERGE_FACTOR),
+						settings.optBoolean("fuzzyBackgroundMerge", true), storeOptions);
+			}
 		} catch (Exception e) {
 			LOGGER.log(Level.ERROR, e.getMessage(), e);
 			MessageFormat mf = new MessageFormat("Fuzzy index of database {0} is damaged.");
 			throw new IOException(mf.format(new String[] { dbname }));
 		}
+		if (rebuild) {
+			rebuildFuzzyIndex(type);
+		}
+		if (migrate) {
+			// postings hold the old keys
+			ConcordanceIndex.delete(database);
+		}
+		concordance = new ConcordanceIndex(database, storeOptions);
+		Iterator<String> langs = tuDb.getLanguages().iterator();
+		while (langs.hasNext()) {
+			String lang = langs.next();
+			if (!concordance.isComplete(lang)) {
+				MessageFormat mf = new MessageFormat("Building {0} concordance index of database {1}.");
+				LOGGER.log(Level.INFO, mf.format(new String[] { lang, dbname }));
+				buildConcordance(lang);
+			}
+		}
+		if (migrate) {
+			tuDb.setMigrated();
+		}
+	}
+
+	/**
+	 * Writes the concordance index of a language from the stored segments.
+	 */
+	private void buildConcordance(String lang) throws IOException {
+		File runs = new File(database, ConcordanceIndex.FOLDER);
+		Files.createDirectories(runs.toPath());
+		try {
+			long memory = settings.optLong("bulkLoadMemory", 0) * 1024 * 1024;
+			concordance.build(lang, tuvDb, runs, memory > 0 ? memory : BulkLoader.DEFAULT_MEMORY);
+		} finally {
+			TMUtils.deleteFolder(runs.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Opens the read-only copy written by {@link #freeze()}. TUs are read from a
+	 * read-only MapDB file.
+	 */
+	private void openFrozen() throws IOException {
+		File folder = new File(database, FROZEN);
+		try {
+			tuDb = new TuDatabase(database, true, storeOptions);
+		} catch (Exception e) {
+			LOGGER.log(Level.ERROR, e.getMessage(), e);
+			MessageFormat mf = new MessageFormat("TU storage of database {0} is damaged.");
+			throw new IOException(mf.format(new String[] { dbname }));
+		}
+		tuvDb = new FrozenTuvDatabase(folder);
+		if (cache != null) {
+			tuvDb = new CachedTuvDatabase(tuvDb, cache);
+		}
+		fuzzyIndex = CompressedFuzzyIndex.openReadOnly(folder);
+		// concordance searches read all segments
+		concordance = null;
+		frozen = true;
+	}
+
+	/**
+	 * Compiles the segments and the fuzzy index of all languages into read-only,
+	 * memory-mapped files and reopens the memory from them. Opening a frozen
+	 * memory reads nothing in advance and searches do not lock, so many threads
+	 * and processes can share the same files. The memory rejects changes, also
+	 * after being closed and opened again, until {@link #thaw()} is called.
+	 * Other threads wait until the memory is frozen or thawed.
+	 */
+	public void freeze() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!frozen) {
+				compileFrozen();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void compileFrozen() throws IOException {
+		commit();
+		MessageFormat mf = new MessageFormat("Freezing database {0}.");
+		LOGGER.log(Level.INFO, mf.format(new String[] { dbname }));
+		File partial = new File(database, FROZEN + ".tmp");
+		if (partial.exists()) {
+			TMUtils.deleteFolder(partial.getAbsolutePath());
+		}
+		Files.createDirectories(partial.toPath());
+		Iterator<String> langs = tuDb.getLanguages().iterator();
+		while (langs.hasNext()) {
+			FrozenTuvDatabase.write(partial, langs.next(), tuvDb);
+		}
+		CompressedFuzzyIndex index = new CompressedFuzzyIndex(partial, CompressedFuzzyIndex.DEFAULT_FLUSH_SIZE,
+				CompressedFuzzyIndex.DEFAULT_MERGE_FACTOR, false);
+		try {
+			fillFuzzyIndex(index);
+			index.compact();
+		} finally {
+			index.close();
+		}
+		File[] logs = new File(partial, "postings").listFiles((dir, name) -> name.endsWith(".log"));
+		for (int i = 0; logs != null && i < logs.length; i++) {
+			// empty after compacting
+			Files.delete(logs[i].toPath());
+		}
+		close();
+		Files.move(partial.toPath(), new File(database, FROZEN).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		openFrozen();
+	}
+
+	/**
+	 * Deletes the read-only copy of a frozen memory and reopens it for changes.
+	 */
+	public void thaw() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!frozen) {
+				return;
+			}
+			close();
+			// the writable files were kept; the copy is only deleted once they are open
+			open();
+			frozen = false;
+			TMUtils.deleteFolder(new File(database, FROZEN).getAbsolutePath());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkWritable() throws IOException {
+		if (frozen) {
+			MessageFormat mf = new MessageFormat("Database {0} is frozen.");
+			throw new IOException(mf.format(new String[] { dbname }));
+		}
+	}
+
+	/**
+	 * Replaces the tuid hash codes used as keys by older versions with docIds.
+	 */
+	private void migrate(TuvDatabase tuvs) throws IOException {
+		MessageFormat mf = new MessageFormat("Assigning docIds to TUs of database {0}.");
+		LOGGER.log(Level.INFO, mf.format(new String[] { dbname }));
+		tuDb.migrate();
+		int[][] keys = tuDb.getLegacyKeys();
+		int[] hashes = keys[0];
+		int[] ids = keys[1];
+		Iterator<String> langs = tuDb.getLanguages().iterator();
+		while (langs.hasNext()) {
+			tuvs.migrate(langs.next(), hash -> {
+				int index = Arrays.binarySearch(hashes, hash);
+				return index >= 0 ? ids[index] : -1;
+			});
+		}
+	}
+
+	/**
+	 * Fills a new fuzzy index from the stored segments, after the index type of
+	 * an existing memory has been changed, and deletes the old index.
+	 */
+	private void rebuildFuzzyIndex(String type) throws IOException {
+		MessageFormat mf = new MessageFormat("Building {0} fuzzy index of database {1}.");
+		LOGGER.log(Level.INFO, mf.format(new String[] { type, dbname }));
+		fillFuzzyIndex(fuzzyIndex);
+		deleteFuzzyIndex(FuzzyIndex.NAME.equals(type) ? CompressedFuzzyIndex.NAME : FuzzyIndex.NAME);
+	}
+
+	/**
+	 * Adds all stored segments to an empty fuzzy index.
+	 */
+	private void fillFuzzyIndex(IFuzzyIndex index) throws IOException {
+		Iterator<String> langs = tuDb.getLanguages().iterator();
+		while (langs.hasNext()) {
+			String lang = langs.next();
+			INGramStrategy strategy = index.getStrategy(lang);
+			int count = 0;
+			Iterator<Integer> it = tuvDb.getKeySet(lang).iterator();
+			while (it.hasNext()) {
+				int id = it.next();
+				String puretext = tuvDb.getPureText(lang, id);
+				index.add(lang, strategy.getNGrams(puretext), id, MatchQuality.length(puretext));
+				if (++count % 10000 == 0) {
+					index.commit();
+				}
+			}
+		}
+		index.commit();
+	}
+
+	private void deleteFuzzyIndex(String type) throws IOException {
+		if (CompressedFuzzyIndex.NAME.equals(type)) {
+			if (CompressedFuzzyIndex.exists(database)) {
+				TMUtils.deleteFolder(new File(database, "postings").getAbsolutePath());
+			}
+		} else {
+			File[] files = database.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].getName().startsWith("index_")) {
+					Files.delete(files[i].toPath());
+				}
+			}
+		}
 	}
 
 	@Override
@@ -113,6 +441,9 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 	@Override
 	public synchronized void close() throws IOException {
 		fuzzyIndex.close();
+		if (concordance != null) {
+			concordance.close();
+		}
 		tuDb.close();
 		tuvDb.close();
 	}
@@ -125,171 +456,572 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 	@Override
 	public int storeTMX(String tmxFile, String project, String customer, String subject)
 			throws SAXException, IOException, ParserConfigurationException {
+		return storeTMX(tmxFile, project, customer, subject, 0, IMPORT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Same as {@link #storeTMX(String, String, String, String)}, preparing TUs
+	 * in {@code workers} threads while the file is parsed and stored, with at
+	 * most {@code queueSize} TUs waiting to be stored. With 0 workers, TUs are
+	 * stored by the parsing thread.
+	 */
+	public int storeTMX(String tmxFile, String project, String customer, String subject, int workers,
+			int queueSize) throws SAXException, IOException, ParserConfigurationException {
+		return storeTMX(tmxFile, project, customer, subject, workers, queueSize, false);
+	}
+
+	/**
+	 * Same as {@link #storeTMX(String, String, String, String, int, int)}. With
+	 * {@code bulkLoad} set and a memory that has no TUs, segments and n-grams
+	 * are sorted in temporary files while the file is parsed and the trees that
+	 * hold them are built in one pass when parsing ends, which is much faster
+	 * than inserting them one at a time. The compressed fuzzy index already
+	 * writes sorted segments, so its n-grams are added as usual. Imported TUs
+	 * can only be found once the method returns, also if it fails.
+	 */
+	public int storeTMX(String tmxFile, String project, String customer, String subject, int workers,
+			int queueSize, boolean bulkLoad) throws SAXException, IOException, ParserConfigurationException {
+		checkWritable();
 		next = 0l;
 		currProject = project != null ? project : "";
 		currSubject = subject != null ? subject : "";
 		currCustomer = customer != null ? customer : "";
 		creationDate = TMUtils.creationDate();
 
-		TMXReader reader = new TMXReader(this);
-		reader.parse(new File(tmxFile).toURI().toURL());
-		commit();
+		StoreOptions logged = storeOptions;
+		boolean unlogged = !settings.optBoolean("importLog", true);
+		if (unlogged) {
+			reopen(storeOptions.withoutLog());
+			Files.createFile(new File(database, UNLOGGED).toPath());
+		}
+		try {
+			if (bulkLoad) {
+				if (tuDb.getKeys().isEmpty()) {
+					long memory = settings.optLong("bulkLoadMemory", 0) * 1024 * 1024;
+					bulkLoader = new BulkLoader(database, memory > 0 ? memory : BulkLoader.DEFAULT_MEMORY,
+							fuzzyIndex instanceof FuzzyIndex);
+				} else {
+					MessageFormat mf = new MessageFormat("Database {0} is not empty; importing without bulk load.");
+					LOGGER.log(Level.WARNING, mf.format(new String[] { dbname }));
+				}
+			}
+			try {
+				return parse(tmxFile, workers, queueSize);
+			} finally {
+				if (bulkLoader != null) {
+					finishBulkLoad();
+				}
+			}
+		} finally {
+			if (unlogged) {
+				// the checkpoint that makes the import durable
+				commit();
+				reopen(logged);
+				Files.delete(new File(database, UNLOGGED).toPath());
+			}
+		}
+	}
 
+	private int parse(String tmxFile, int workers, int queueSize)
+			throws SAXException, IOException, ParserConfigurationException {
+		if (workers < 1) {
+			TMXReader reader = new TMXReader(this);
+			reader.parse(new File(tmxFile).toURI().toURL());
+			commit();
+			return reader.getCount();
+		}
+		ImportPipeline pipeline = new ImportPipeline(this, workers, Math.max(1, queueSize));
+		TMXReader reader = new TMXReader(pipeline);
+		try {
+			reader.parse(new File(tmxFile).toURI().toURL());
+		} finally {
+			pipeline.finish();
+		}
 		return reader.getCount();
 	}
 
+	/**
+	 * Closes the stores and opens them with other options, once no other thread
+	 * is using them.
+	 */
+	private void reopen(StoreOptions options) throws IOException {
+		lock.writeLock().lock();
+		try {
+			close();
+			storeOptions = options;
+			open();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the segments and n-grams collected by the bulk load, so that
+	 * memory files match the TUs stored even if the import failed.
+	 */
+	private void finishBulkLoad() throws IOException {
+		BulkLoader loader = bulkLoader;
+		bulkLoader = null;
+		try {
+			loader.finish(tuvStore, loader.indexes() ? (FuzzyIndex) fuzzyIndex : null);
+			Iterator<String> langs = tuDb.getLanguages().iterator();
+			while (langs.hasNext()) {
+				buildConcordance(langs.next());
+			}
+			commit();
+		} finally {
+			loader.delete();
+		}
+	}
+
 	@Override
 	public void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> props)
 			throws IOException, SAXException, ParserConfigurationException {
+		exportMemory(tmxfile, langs, srcLang, props, null);
+	}
+
+	@Override
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> props,
+			TuFilter filter) throws IOException, SAXException, ParserConfigurationException {
+		exportMemory(tmxfile, langs, srcLang, props, filter, 1);
+	}
+
+	/**
+	 * Exports the TUs selected by a filter, writing their XML from the stored
+	 * properties and segments through a buffered writer. With more than one
+	 * thread, TUs are prepared in chunks of consecutive docIds by a pool of
+	 * {@code threads} workers and written in docId order.
+	 */
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> props,
+			TuFilter filter, int threads) throws IOException, SAXException, ParserConfigurationException {
 		Map<String, String> properties = props != null ? props : new Hashtable<>();
-		try (FileOutputStream output = new FileOutputStream(new File(tmxfile))) {
+		lock.readLock().lock();
+		try (Writer output = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(new File(tmxfile)), StandardCharsets.UTF_8),
+				EXPORT_BUFFER)) {
 			writeHeader(output, srcLang, properties);
-			writeString(output, "  <body>\n");
+			output.write("  <body>\n");
+			TmxExporter exporter = new TmxExporter(tuDb, tuvDb, tuAttributes);
+			exporter.export(output, select(filter).iterator(), langs, threads);
+			output.write("  </body>\n");
+			output.write("</tmx>");
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
-			Set<Integer> set = tuDb.getKeys();
-			Iterator<Integer> it = set.iterator();
-			while (it.hasNext()) {
-				int hash = it.next();
-				Map<String, String> tuProps = tuDb.getTu(hash);
-				Element tu = buildElement(tuProps);
-				if (langs != null) {
-					List<Element> tuvs = tu.getChildren("tuv");
-					Iterator<Element> et = tuvs.iterator();
-					while (et.hasNext()) {
-						Element tuv = et.next();
-						if (!langs.contains(tuv.getAttributeValue("xml:lang"))) {
-							tu.removeChild(tuv);
-						}
-					}
+	@Override
+	public void flag(String tuid) {
+		if (frozen) {
+			MessageFormat mf = new MessageFormat("Database {0} is frozen; TU {1} was not flagged.");
+			LOGGER.log(Level.WARNING, mf.format(new String[] { dbname, tuid }));
+			return;
+		}
+		lock.readLock().lock();
+		try {
+			int id = tuDb.getId(tuid);
+			Map<String, String> properties = tuDb.getTu(id);
+			if (properties != null) {
+				properties.put("x-flag", "SW-Flag");
+				tuDb.store(id, properties);
+				if (cache != null) {
+					cache.invalidateTu(id);
 				}
-				Indenter.indent(tu, 3, 2);
-				writeString(output, "    " + tu.toString() + "\n");
 			}
-			writeString(output, "  </body>\n");
-			writeString(output, "</tmx>");
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
-	@Override
-	public void flag(String tuid) {
-		Map<String, String> properties = tuDb.getTu(tuid.hashCode());
-		if (properties != null) {
-			properties.put("x-flag", "SW-Flag");
-			tuDb.store(tuid, properties);
+	/**
+	 * Returns a copy of a set kept by the TU storage, which an import may close.
+	 */
+	private Set<String> copy(Supplier<Set<String>> set) {
+		lock.readLock().lock();
+		try {
+			return Collections.synchronizedSortedSet(new TreeSet<>(set.get()));
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
 	@Override
 	public Set<String> getAllClients() {
-		return tuDb.getCustomers();
+		return copy(() -> tuDb.getCustomers());
 	}
 
 	@Override
 	public Set<String> getAllLanguages() {
-		return tuDb.getLanguages();
+		return copy(() -> tuDb.getLanguages());
 	}
 
 	@Override
 	public Set<String> getAllProjects() {
-		return tuDb.getProjects();
+		return copy(() -> tuDb.getProjects());
 	}
 
 	@Override
 	public Set<String> getAllSubjects() {
-		return tuDb.getSubjects();
+		return copy(() -> tuDb.getSubjects());
 	}
 
 	@Override
 	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException {
+		return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, 0);
+	}
+
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults) throws IOException, SAXException, ParserConfigurationException {
+		return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, maxResults, null);
+	}
+
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException {
+		lock.readLock().lock();
+		try {
+			return findMatches(searchStr, srcLang, tgtLang, similarity, caseSensitive, maxResults, filter);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
-		List<Match> result = new Vector<>();
+	private List<Match> findMatches(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException {
+		TopMatches top = new TopMatches(maxResults);
+		BitSet allowed = filter != null && !filter.isEmpty() ? tuDb.select(filter) : null;
+		if (allowed != null && allowed.isEmpty()) {
+			return top.getMatches();
+		}
 
 		if (similarity == 100) {
 			// check for perfect matches
-			Set<String> perfect = tuvDb.getPerfectMatches(srcLang, searchStr);
+			Set<Integer> perfect = tuvDb.getPerfectMatches(srcLang, searchStr);
 			if (!perfect.isEmpty()) {
-				Iterator<String> it = perfect.iterator();
+				Iterator<Integer> it = perfect.iterator();
 				while (it.hasNext()) {
-					String tuid = it.next();
-					String puretext = tuvDb.getPureText(srcLang, tuid.hashCode());
-					boolean isMatch = true;
-					if (caseSensitive) {
-						isMatch = searchStr.equals(puretext);
+					Integer id = it.next();
+					if (allowed != null && !allowed.get(id)) {
+						continue;
 					}
-					if (isMatch) {
-						String targetSeg = tuvDb.getSegText(tgtLang, tuid);
-						if (targetSeg != null) {
-							String sourceSeg = tuvDb.getSegText(srcLang, tuid);
-							Element source = TMUtils.buildTuv(srcLang, sourceSeg);
-							Element target = TMUtils.buildTuv(tgtLang, targetSeg);
-							Map<String, String> properties = tuDb.getTu(tuid.hashCode());
-							Match match = new Match(source, target, 100, dbname, properties);
-							result.add(match);
-						}
+					String[] tuv = tuvDb.getMatch(srcLang, tgtLang, id);
+					if (tuv != null && (!caseSensitive || searchStr.equals(tuv[0]))) {
+						Element source = TMUtils.buildTuv(srcLang, tuv[1]);
+						Element target = TMUtils.buildTuv(tgtLang, tuv[2]);
+						Map<String, String> properties = getProperties(id);
+						Match match = new Match(source, target, 100, dbname, properties);
+						top.add(match, id);
 					}
 				}
 			}
 		}
 		if (similarity < 100) {
 			// Check for fuzzy matches
-			int[] ngrams = NGrams.getNGrams(searchStr);
+			int[] ngrams = fuzzyIndex.getStrategy(srcLang).getNGrams(searchStr);
 			int size = ngrams.length;
 			if (size == 0) {
-				return result;
+				return top.getMatches();
 			}
 			int min = size * similarity / 100;
 			int max = size * (200 - similarity) / 100;
 
-			Map<String, Integer> candidates = new Hashtable<>();
+			// TUs outside this window cannot reach the similarity, whatever their text
+			int length = MatchQuality.length(searchStr);
+			int minLength = MatchQuality.minLength(length, similarity);
+			int maxLength = MatchQuality.maxLength(length, similarity);
+
 			String lowerSearch = searchStr.toLowerCase();
+			int[] selected = getCandidates(srcLang, ngrams, min, max, minLength, maxLength);
+			if (allowed != null) {
+				selected = retain(selected, allowed);
+			}
+			verify(selected, top, searchStr, lowerSearch, srcLang, tgtLang, similarity, caseSensitive);
+		}
+		return top.getMatches();
+	}
 
-			NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(srcLang);
-			for (int i = 0; i < ngrams.length; i++) {
-				Iterable<String> keys = Fun.filter(index, ngrams[i]);
-				Iterator<String> it = keys.iterator();
-				while (it.hasNext()) {
-					String tuid = it.next();
-					if (candidates.containsKey(tuid)) {
-						int count = candidates.get(tuid);
-						candidates.put(tuid, count + 1);
-					} else {
-						candidates.put(tuid, 1);
-					}
-				}
+	/**
+	 * Returns the docIds in {@code ids} that are set in {@code allowed}, in the
+	 * same order.
+	 */
+	private static int[] retain(int[] ids, BitSet allowed) {
+		int count = 0;
+		int[] result = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			if (allowed.get(ids[i])) {
+				result[count++] = ids[i];
 			}
+		}
+		return Arrays.copyOf(result, count);
+	}
 
-			Set<String> tuids = candidates.keySet();
-			Iterator<String> it = tuids.iterator();
-			while (it.hasNext()) {
-				String tuid = it.next();
-				int count = candidates.get(tuid);
-				if (count >= min && count <= max) {
-					int distance;
-					String puretext = tuvDb.getPureText(srcLang, tuid.hashCode());
-					if (caseSensitive) {
-						distance = MatchQuality.similarity(searchStr, puretext);
-					} else {
-						distance = MatchQuality.similarity(lowerSearch, puretext.toLowerCase());
+	/**
+	 * Returns the docIds of the TUs accepted by {@code filter} in ascending
+	 * order, or of all TUs if it is null or empty.
+	 */
+	private Iterable<Integer> select(TuFilter filter) {
+		if (filter == null || filter.isEmpty()) {
+			return tuDb.getKeys();
+		}
+		return tuDb.select(filter).stream()::iterator;
+	}
+
+	/**
+	 * Returns the sorted docIds of the TUs that share between {@code min} and
+	 * {@code max} n-grams with the search string and have a length between
+	 * {@code minLength} and {@code maxLength}.
+	 */
+	private int[] getCandidates(String srcLang, int[] ngrams, int min, int max, int minLength, int maxLength)
+			throws IOException {
+		int size = ngrams.length;
+		CandidateCounter candidates = CandidateCounter.get();
+
+		// A TU that shares at least "min" n-grams with the search string must
+		// contain one of the "size - min + 1" rarest ones. Only their posting
+		// lists are walked; common n-grams are checked per candidate
+		int[] df = new int[size];
+		for (int i = 0; i < size; i++) {
+			df[i] = fuzzyIndex.getFrequency(srcLang, ngrams[i]);
+		}
+		NGrams.sortByFrequency(ngrams, df);
+		int probe = size - Math.max(min, 1) + 1;
+		long skipped = 0l;
+		for (int i = 0; i < size; i++) {
+			if (i >= probe) {
+				// remove candidates that can no longer reach the minimum
+				candidates.prune(min - (size - i));
+				if (candidates.size() == 0) {
+					break;
+				}
+			}
+			if (i < probe || df[i] <= candidates.size()) {
+				if (i < probe) {
+					int[] postings = fuzzyIndex.getPostings(srcLang, ngrams[i], minLength, maxLength);
+					for (int j = 0; j < postings.length; j++) {
+						candidates.add(postings[j]);
 					}
-					if (distance >= similarity) {
-						String targetSeg = tuvDb.getSegText(tgtLang, tuid);
-						if (targetSeg != null) {
-							String sourceSeg = tuvDb.getSegText(srcLang, tuid);
-							Element source = TMUtils.buildTuv(srcLang, sourceSeg);
-							Element target = TMUtils.buildTuv(tgtLang, targetSeg);
-							Map<String, String> properties = tuDb.getTu(tuid.hashCode());
-							Match match = new Match(source, target, distance, dbname, properties);
-							result.add(match);
-						}
+				} else {
+					int[] postings = fuzzyIndex.getPostings(srcLang, ngrams[i]);
+					for (int j = 0; j < postings.length; j++) {
+						candidates.addIfPresent(postings[j]);
+					}
+				}
+			} else {
+				skipped += df[i];
+				int capacity = candidates.capacity();
+				for (int slot = 0; slot < capacity; slot++) {
+					int id = candidates.key(slot);
+					if (id != 0 && fuzzyIndex.contains(srcLang, ngrams[i], id)) {
+						candidates.increment(slot);
 					}
 				}
 			}
 		}
-		return result;
+		skippedPostings.addAndGet(skipped);
+		if (LOGGER.isLoggable(Level.DEBUG)) {
+			LOGGER.log(Level.DEBUG, "Fuzzy search skipped " + skipped + " postings in " + (size - probe)
+					+ " common n-grams");
+		}
+
+		// sorted, so results come in the same order whatever the thread count
+		int[] selected = new int[candidates.size()];
+		int count = 0;
+		int capacity = candidates.capacity();
+		for (int slot = 0; slot < capacity; slot++) {
+			int id = candidates.key(slot);
+			if (id != 0 && candidates.count(slot) >= min && candidates.count(slot) <= max) {
+				selected[count++] = id;
+			}
+		}
+		selected = Arrays.copyOf(selected, count);
+		Arrays.sort(selected);
+		return selected;
+	}
+
+	/**
+	 * Scores fuzzy candidates and adds the matches that reach the requested
+	 * similarity to {@code top}. Large candidate lists are split in chunks that
+	 * are scored in {@link #VERIFIERS} by at most {@code parallelism} threads,
+	 * including the calling one.
+	 */
+	private void verify(int[] ids, TopMatches top, String searchStr, String lowerSearch, String srcLang,
+			String tgtLang, int similarity, boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException {
+		int chunks = (ids.length + VERIFY_CHUNK - 1) / VERIFY_CHUNK;
+		int workers = Math.min(parallelism, chunks);
+		if (workers < 2) {
+			verify(ids, 0, ids.length, top, searchStr, lowerSearch, srcLang, tgtLang, similarity, caseSensitive);
+			return;
+		}
+		AtomicInteger nextChunk = new AtomicInteger();
+		Runnable worker = () -> {
+			int chunk = nextChunk.getAndIncrement();
+			while (chunk < chunks) {
+				int from = chunk * VERIFY_CHUNK;
+				int to = Math.min(from + VERIFY_CHUNK, ids.length);
+				try {
+					verify(ids, from, to, top, searchStr, lowerSearch, srcLang, tgtLang, similarity, caseSensitive);
+				} catch (IOException | SAXException | ParserConfigurationException e) {
+					// stop the other workers
+					nextChunk.set(chunks);
+					throw new VerificationException(e);
+				}
+				chunk = nextChunk.getAndIncrement();
+			}
+		};
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int i = 1; i < workers; i++) {
+			tasks.add(VERIFIERS.submit(worker));
+		}
+		Throwable failure = null;
+		try {
+			worker.run();
+		} catch (VerificationException e) {
+			failure = e.getCause();
+		}
+		for (int i = 0; i < tasks.size(); i++) {
+			try {
+				tasks.get(i).get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof VerificationException ? e.getCause().getCause() : e.getCause();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e.getMessage());
+			}
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof SAXException) {
+			throw (SAXException) failure;
+		}
+		if (failure instanceof ParserConfigurationException) {
+			throw (ParserConfigurationException) failure;
+		}
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
 	}
 
-	private Element buildElement(Map<String, String> properties)
+	private void verify(int[] ids, int from, int to, TopMatches top, String searchStr, String lowerSearch,
+			String srcLang, String tgtLang, int similarity, boolean caseSensitive)
+			throws IOException, SAXException, ParserConfigurationException {
+		for (int i = from; i < to; i++) {
+			int id = ids[i];
+			// once enough matches are collected, weaker candidates stop scoring early
+			int threshold = Math.max(similarity, top.getThreshold());
+			int distance;
+			String[] tuv = tuvDb.getTuv(srcLang, id);
+			if (tuv == null) {
+				continue;
+			}
+			String puretext = tuv[0];
+			if (caseSensitive) {
+				distance = MatchQuality.similarity(searchStr, puretext, threshold, scorer);
+			} else {
+				distance = MatchQuality.similarity(lowerSearch, puretext.toLowerCase(), threshold, scorer);
+			}
+			if (distance >= threshold) {
+				String targetSeg = tuvDb.getSegText(tgtLang, id);
+				if (targetSeg != null) {
+					Element source = TMUtils.buildTuv(srcLang, tuv[1]);
+					Element target = TMUtils.buildTuv(tgtLang, targetSeg);
+					Map<String, String> properties = getProperties(id);
+					Match match = new Match(source, target, distance, dbname, properties);
+					top.add(match, id);
+				}
+			}
+		}
+	}
+
+	private static class VerificationException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		VerificationException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Returns the thread count selected with the "tmengine.search.parallelism"
+	 * system property, half the available processors if not set.
+	 */
+	private static int getDefaultParallelism() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Integer.getInteger("tmengine.search.parallelism", processors / 2).intValue());
+	}
+
+	/**
+	 * Sets how many threads a single fuzzy search may use to score its
+	 * candidates, so one query with many candidates cannot take all the threads
+	 * shared with other searches. 1 scores everything on the calling thread.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Returns the number of posting list entries that fuzzy searches did not
+	 * have to read because their n-grams were common enough to be checked per
+	 * candidate instead.
+	 */
+	public long getSkippedPostings() {
+		return skippedPostings.get();
+	}
+
+	/**
+	 * Selects how fuzzy match similarity is computed, either
+	 * {@link MatchQuality#LCS} or {@link MatchQuality#TILING}.
+	 */
+	public void setScorer(String scorer) {
+		if (!MatchQuality.isScorer(scorer)) {
+			throw new IllegalArgumentException("Unknown scorer: " + scorer);
+		}
+		this.scorer = scorer;
+	}
+
+	public String getScorer() {
+		return scorer;
+	}
+
+	private Map<String, String> getProperties(int id) throws IOException {
+		if (cache != null) {
+			return cache.getTu(id, () -> tuDb.getTu(id));
+		}
+		return tuDb.getTu(id);
+	}
+
+	/**
+	 * Returns how many segment and TU property reads were answered by the cache
+	 * selected with the "cacheSize" setting.
+	 */
+	public long getCacheHits() {
+		return cache != null ? cache.getHits() : 0l;
+	}
+
+	/**
+	 * Returns how many segment and TU property reads were not found in the
+	 * cache and had to be read from the database.
+	 */
+	public long getCacheMisses() {
+		return cache != null ? cache.getMisses() : 0l;
+	}
+
+	private Element buildElement(int id, Map<String, String> properties)
 			throws IOException, SAXException, ParserConfigurationException {
 		Element tu = new Element("tu");
 		Set<String> keys = properties.keySet();
@@ -305,12 +1037,11 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 				tu.addContent(prop);
 			}
 		}
-		String tuid = tu.getAttributeValue("tuid");
 		Set<String> langs = tuDb.getLanguages();
 		it = langs.iterator();
 		while (it.hasNext()) {
 			String lang = it.next();
-			String seg = tuvDb.getSegText(lang, tuid);
+			String seg = tuvDb.getSegText(lang, id);
 			if (seg != null) {
 				Element tuv = TMUtils.buildTuv(lang, seg);
 				tu.addContent(tuv);
@@ -322,6 +1053,22 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 	@Override
 	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException {
+		return concordanceSearch(searchStr, srcLang, limit, isRegexp, caseSensitive, null);
+	}
+
+	@Override
+	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive, TuFilter filter) throws IOException, SAXException, ParserConfigurationException {
+		lock.readLock().lock();
+		try {
+			return findEntries(searchStr, srcLang, limit, isRegexp, caseSensitive, filter);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Element> findEntries(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive, TuFilter filter) throws IOException, SAXException, ParserConfigurationException {
 		List<Element> result = new Vector<>();
 		Pattern pattern = null;
 		if (isRegexp) {
@@ -332,14 +1079,25 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 			}
 		}
 		String lowerStr = searchStr.toLowerCase();
-		NavigableSet<Integer> keySet = tuvDb.getKeySet(srcLang);
-		Iterator<Integer> it = keySet.iterator();
+		String searched = caseSensitive ? searchStr : lowerStr;
+		Iterable<Integer> keys;
+		if (!isRegexp && concordance != null && ConcordanceIndex.canSearch(searched, caseSensitive)) {
+			// only segments with all trigrams of the string are checked
+			keys = getConcordanceCandidates(srcLang, searched, filter);
+		} else {
+			keys = filter == null || filter.isEmpty() ? tuvDb.getKeySet(srcLang) : select(filter);
+		}
+		Iterator<Integer> it = keys.iterator();
 		while (it.hasNext()) {
-			int hash = it.next();
-			String pureText = tuvDb.getPureText(srcLang, hash);
+			int id = it.next();
+			String pureText = tuvDb.getPureText(srcLang, id);
+			if (pureText == null) {
+				// filtered TU without this language
+				continue;
+			}
 			if (isRegexp) {
 				if (pattern != null && pattern.matcher(pureText).matches()) {
-					result.add(buildElement(tuDb.getTu(hash)));
+					result.add(buildElement(id, getProperties(id)));
 					if (result.size() == limit) {
 						return result;
 					}
@@ -347,14 +1105,14 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 			} else {
 				if (caseSensitive) {
 					if (pureText.indexOf(searchStr) != -1) {
-						result.add(buildElement(tuDb.getTu(hash)));
+						result.add(buildElement(id, getProperties(id)));
 						if (result.size() == limit) {
 							return result;
 						}
 					}
 				} else {
 					if (pureText.toLowerCase().indexOf(lowerStr) != -1) {
-						result.add(buildElement(tuDb.getTu(hash)));
+						result.add(buildElement(id, getProperties(id)));
 						if (result.size() == limit) {
 							return result;
 						}
@@ -366,12 +1124,67 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 		return result;
 	}
 
+	/**
+	 * Returns, in ascending order, the docIds of the segments in a language that
+	 * have the trigrams of a string and, if set, match a filter.
+	 */
+	private Iterable<Integer> getConcordanceCandidates(String srcLang, String searchStr, TuFilter filter)
+			throws IOException {
+		Iterator<Integer> candidates = concordance.getCandidates(srcLang, ConcordanceIndex.getGrams(searchStr));
+		if (filter == null || filter.isEmpty()) {
+			return () -> candidates;
+		}
+		BitSet selected = tuDb.select(filter);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(candidates, Spliterator.ORDERED), false)
+				.filter(selected::get)::iterator;
+	}
+
 	@Override
 	public void storeTu(Element tu) throws IOException {
-		String tuid = tu.getAttributeValue("tuid");
-		if (tuid.isEmpty()) {
-			tuid = nextId();
-			tu.setAttribute("tuid", tuid);
+		checkWritable();
+		lock.readLock().lock();
+		try {
+			store(Collections.singletonList(prepare(tu)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * A TU with the properties, texts and n-grams computed by
+	 * {@link MapDbEngine#prepare(Element)}, ready to be stored.
+	 */
+	static class PreparedTu {
+		Element tu;
+		Map<String, String> properties;
+		// one entry per valid tuv; texts are null for tuvs that are only removed
+		List<String> langs = new ArrayList<>();
+		List<String[]> texts = new ArrayList<>();
+		List<int[]> ngrams = new ArrayList<>();
+		List<int[]> grams = new ArrayList<>();
+
+		/**
+		 * Returns the number of characters of the segments to store.
+		 */
+		long getCharacters() {
+			long characters = 0;
+			for (int i = 0; i < texts.size(); i++) {
+				if (texts.get(i) != null) {
+					characters += texts.get(i)[1].length();
+				}
+			}
+			return characters;
+		}
+	}
+
+	/**
+	 * Does the part of {@link #storeTu(Element)} that does not read or write the
+	 * database, so that it can run in several threads. TUs without tuid get one
+	 * when stored.
+	 */
+	PreparedTu prepare(Element tu) throws IOException {
+		if (tu.getAttributeValue("tuid").isEmpty()) {
+			tu.setAttribute("tuid", "");
 		}
 		if (tu.getAttributeValue("creationdate").isEmpty()) {
 			tu.setAttribute("creationdate", creationDate);
@@ -402,8 +1215,11 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 		if (currProject != null && !currProject.isEmpty()) {
 			tuProperties.put("project", currProject);
 		}
+		PreparedTu prepared = new PreparedTu();
+		prepared.tu = tu;
+		prepared.properties = tuProperties;
 		List<Element> tuvs = tu.getChildren("tuv");
-		Set<String> tuLangs = Collections.synchronizedSortedSet(new TreeSet<>());
+		Set<String> tuLangs = new TreeSet<>();
 
 		Iterator<Element> it = tuvs.iterator();
 		while (it.hasNext()) {
@@ -413,8 +1229,9 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 				// Invalid language code, ignore this tuv
 				continue;
 			}
-			tuDb.storeLanguage(lang);
-			tuvDb.remove(lang, tuid);
+			String[] texts = null;
+			int[] ngrams = null;
+			int[] grams = null;
 			if (!tuLangs.contains(lang)) {
 				Element seg = tuv.getChild("seg");
 				String puretext = TMUtils.extractText(seg);
@@ -422,65 +1239,155 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 					String segText = seg.toString();
 					segText = segText.substring("<seg>".length());
 					segText = segText.substring(0, segText.length() - "</seg>".length());
-					tuvDb.store(lang, tuid, puretext, segText);
-
-					int[] ngrams = NGrams.getNGrams(puretext);
-					NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(lang);
-					for (int i = 0; i < ngrams.length; i++) {
-						Tuple2<Integer, String> entry = Fun.t2(ngrams[i], tuid);
-						if (!index.contains(entry)) {
-							index.add(entry);
+					texts = new String[] { puretext, segText };
+					ngrams = fuzzyIndex.getStrategy(lang).getNGrams(puretext);
+					grams = ConcordanceIndex.getGrams(puretext);
+					tuLangs.add(lang);
+				}
+			}
+			prepared.langs.add(lang);
+			prepared.texts.add(texts);
+			prepared.ngrams.add(ngrams);
+			prepared.grams.add(grams);
+		}
+		return prepared;
+	}
+
+	/**
+	 * Writes TUs returned by {@link #prepare(Element)}, in the order they should
+	 * get their docIds, by one thread at a time. The n-grams of all TUs are added
+	 * to the fuzzy and concordance indexes together, once per language, after
+	 * their segments.
+	 */
+	void store(List<PreparedTu> batch) throws IOException {
+		Map<String, List<int[]>> ngrams = new TreeMap<>();
+		// trigrams to add by language and docId, so that a segment replaced in the
+		// same batch is never added
+		Map<String, Map<Integer, int[]>> grams = new TreeMap<>();
+		Map<String, List<int[]>> segments = new TreeMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			PreparedTu prepared = batch.get(i);
+			String tuid = prepared.properties.get("tuid");
+			if (tuid.isEmpty()) {
+				tuid = nextId();
+				prepared.tu.setAttribute("tuid", tuid);
+				prepared.properties.put("tuid", tuid);
+			}
+			int id = tuDb.createId(tuid);
+			for (int j = 0; j < prepared.langs.size(); j++) {
+				String lang = prepared.langs.get(j);
+				tuDb.storeLanguage(lang);
+				String[] texts = prepared.texts.get(j);
+				if (bulkLoader != null) {
+					bulkLoader.store(lang, id, texts);
+				} else {
+					Map<Integer, int[]> langGrams = grams.computeIfAbsent(lang, l -> new TreeMap<>());
+					if (langGrams.remove(id) == null) {
+						String old = tuvDb.getPureText(lang, id);
+						if (old != null) {
+							concordance.remove(lang, ConcordanceIndex.getGrams(old), id);
 						}
 					}
-					tuLangs.add(lang);
+					tuvDb.remove(lang, id);
+					if (texts != null) {
+						tuvDb.store(lang, id, texts[0], texts[1]);
+						langGrams.put(id, prepared.grams.get(j));
+					}
+				}
+				if (texts == null) {
+					continue;
+				}
+				if (bulkLoader != null && bulkLoader.indexes()) {
+					bulkLoader.index(lang, id, prepared.ngrams.get(j), MatchQuality.length(texts[0]));
+				} else {
+					ngrams.computeIfAbsent(lang, l -> new ArrayList<>()).add(prepared.ngrams.get(j));
+					segments.computeIfAbsent(lang, l -> new ArrayList<>())
+							.add(new int[] { id, MatchQuality.length(texts[0]) });
 				}
 			}
+			tuDb.store(id, prepared.properties);
+			if (cache != null) {
+				cache.invalidateTu(id);
+			}
+		}
+		Iterator<String> it = ngrams.keySet().iterator();
+		while (it.hasNext()) {
+			String lang = it.next();
+			List<int[]> langSegments = segments.get(lang);
+			int[] ids = new int[langSegments.size()];
+			int[] lengths = new int[langSegments.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = langSegments.get(i)[0];
+				lengths[i] = langSegments.get(i)[1];
+			}
+			fuzzyIndex.add(lang, ngrams.get(lang).toArray(new int[ids.length][]), ids, lengths);
 		}
-		tuDb.store(tuid, tuProperties);
+		Iterator<Map.Entry<String, Map<Integer, int[]>>> gt = grams.entrySet().iterator();
+		while (gt.hasNext()) {
+			Map.Entry<String, Map<Integer, int[]>> entry = gt.next();
+			Map<Integer, int[]> langGrams = entry.getValue();
+			int[] ids = new int[langGrams.size()];
+			int count = 0;
+			Iterator<Integer> keys = langGrams.keySet().iterator();
+			while (keys.hasNext()) {
+				ids[count++] = keys.next();
+			}
+			concordance.add(entry.getKey(), langGrams.values().toArray(new int[ids.length][]), ids);
+		}
+	}
+
+	@Override
+	public CommitPolicy createCommitPolicy() {
+		return new CommitPolicy(settings.optInt("commitInterval", CommitPolicy.DEFAULT_INTERVAL),
+				settings.optLong("commitSize", 0), settings.optLong("commitSeconds", 0) * 1000);
 	}
 
 	@Override
-	public synchronized void commit() {
+	public synchronized void commit() throws IOException {
 		fuzzyIndex.commit();
+		if (concordance != null) {
+			concordance.commit();
+		}
 		tuDb.commit();
 		tuvDb.commit();
 	}
 
 	@Override
 	public Element getTu(String tuid) throws IOException, SAXException, ParserConfigurationException {
-		Map<String, String> properties = tuDb.getTu(tuid.hashCode());
-		return buildElement(properties);
+		lock.readLock().lock();
+		try {
+			int id = tuDb.getId(tuid);
+			Map<String, String> properties = getProperties(id);
+			return buildElement(id, properties);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
-	private static void writeHeader(FileOutputStream output, String srcLang, Map<String, String> properties)
+	private static void writeHeader(Writer output, String srcLang, Map<String, String> properties)
 			throws IOException {
-		writeString(output, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-		writeString(output,
+		output.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		output.write(
 				"<!DOCTYPE tmx PUBLIC \"-//LISA OSCAR:1998//DTD for Translation Memory eXchange//EN\" \"tmx14.dtd\" >\n");
-		writeString(output, "<tmx version=\"1.4\">\n");
-		writeString(output,
-				"  <header creationtool=\"" + Constants.CREATIONTOOL + "\" creationtoolversion=\"" + Constants.VERSION
-						+ "\" srclang=\"" + srcLang
-						+ "\" adminlang=\"en\" datatype=\"xml\" o-tmf=\"unknown\" segtype=\"block\" creationdate=\""
-						+ TMUtils.creationDate() + "\"");
+		output.write("<tmx version=\"1.4\">\n");
+		output.write("  <header creationtool=\"" + Constants.CREATIONTOOL + "\" creationtoolversion=\""
+				+ Constants.VERSION + "\" srclang=\"" + srcLang
+				+ "\" adminlang=\"en\" datatype=\"xml\" o-tmf=\"unknown\" segtype=\"block\" creationdate=\""
+				+ TMUtils.creationDate() + "\"");
 		if (properties.isEmpty()) {
-			writeString(output, "/>\n");
+			output.write("/>\n");
 		} else {
-			writeString(output, ">\n");
+			output.write(">\n");
 			Set<String> keys = properties.keySet();
 			Iterator<String> it = keys.iterator();
 			while (it.hasNext()) {
 				String key = it.next();
-				writeString(output, "   <prop type=\"" + key + "\">" + properties.get(key) + "</prop>\n");
+				output.write("   <prop type=\"" + key + "\">" + properties.get(key) + "</prop>\n");
 			}
-			writeString(output, "  </header>\n");
+			output.write("  </header>\n");
 		}
 	}
 
-	private static void writeString(FileOutputStream output, String string) throws IOException {
-		output.write(string.getBytes(StandardCharsets.UTF_8));
-	}
-
 	private String nextId() {
 		if (next == 0l) {
 			next = Calendar.getInstance().getTimeInMillis();
@@ -490,27 +1397,32 @@ public class MapDbEngine implements ITmEngine, AutoCloseable {
 
 	@Override
 	public void removeTu(String tuid) throws IOException, SAXException, ParserConfigurationException {
-		Element tu = getTu(tuid);
-		tuDb.remove(tuid);
+		checkWritable();
+		lock.readLock().lock();
+		try {
+			int id = tuDb.getId(tuid);
+			Element tu = getTu(tuid);
+			tuDb.remove(tuid);
+			if (cache != null) {
+				cache.invalidateTu(id);
+			}
 
-		List<Element> tuvs = tu.getChildren("tuv");
-		Iterator<Element> it = tuvs.iterator();
-		while (it.hasNext()) {
-			Element tuv = it.next();
-			String lang = tuv.getAttributeValue("xml:lang");
-			tuvDb.remove(lang, tuid);
-
-			Element seg = tuv.getChild("seg");
-			String puretext = TMUtils.extractText(seg);
-
-			int[] ngrams = NGrams.getNGrams(puretext);
-			NavigableSet<Fun.Tuple2<Integer, String>> index = fuzzyIndex.getIndex(lang);
-			for (int i = 0; i < ngrams.length; i++) {
-				Tuple2<Integer, String> entry = Fun.t2(ngrams[i], tuid);
-				if (index.contains(entry)) {
-					index.remove(entry);
-				}
+			List<Element> tuvs = tu.getChildren("tuv");
+			Iterator<Element> it = tuvs.iterator();
+			while (it.hasNext()) {
+				Element tuv = it.next();
+				String lang = tuv.getAttributeValue("xml:lang");
+				tuvDb.remove(lang, id);
+
+				Element seg = tuv.getChild("seg");
+				String puretext = TMUtils.extractText(seg);
+
+				int[] ngrams = fuzzyIndex.getStrategy(lang).getNGrams(puretext);
+				fuzzyIndex.remove(lang, ngrams, id);
+				concordance.remove(lang, ConcordanceIndex.getGrams(puretext), id);
 			}
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
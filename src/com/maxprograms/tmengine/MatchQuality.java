@@ -15,80 +15,386 @@ public class MatchQuality {
 
 	private static final int PENALTY = 2;
 
+	/**
+	 * Scorer that repeatedly removes the longest common substring.
+	 */
+	public static final String LCS = "lcs";
+
+	/**
+	 * Scorer that finds the same tiles as {@link #LCS} with Karp-Rabin hashes, in
+	 * O((m + n) log n) time per tile instead of O(m n).
+	 */
+	public static final String TILING = "tiling";
+
+	private static final int HASH_BASE = 0x01000193;
+
+	// per thread work area, grown on demand and reused across calls
+	private static final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
 	private MatchQuality() {
 		// private for security
 	}
 
-	static String lcs(String x, String y) {
-		StringBuilder result = new StringBuilder();
-		int m = x.length();
-		int n = y.length();
-		int max = 0;
-		int mx = 0;
+	static class Workspace {
+		char[] a = new char[256];
+		char[] b = new char[256];
+		int[] row = new int[257];
+		int[] hashes = new int[256];
+		int[] next = new int[256];
+		int[] head = new int[512];
 
-		// opt[i][j] = length of LCS of x[i..M] and y[j..N]
-		int[][] opt = new int[m + 1][n + 1];
+		// result of the last call to lcs() or findTile()
+		int length;
+		int aEnd;
+		int bEnd;
 
-		// fill the matrix
+		void ensureCapacity(int size) {
+			if (a.length < size) {
+				int capacity = Math.max(size, a.length * 2);
+				a = new char[capacity];
+				b = new char[capacity];
+				row = new int[capacity + 1];
+				hashes = new int[capacity];
+				next = new int[capacity];
+				head = new int[Integer.highestOneBit(capacity) * 4];
+			}
+		}
+	}
+
+	static Workspace getWorkspace(int size) {
+		Workspace w = workspaces.get();
+		w.ensureCapacity(size);
+		return w;
+	}
+
+	/**
+	 * Finds the longest common substring of {@code a[0..m)} and {@code b[0..n)}
+	 * using a single reusable row of the dynamic programming matrix. Sets
+	 * {@code w.length} and the exclusive end offsets {@code w.aEnd} and
+	 * {@code w.bEnd}. When several substrings have the maximum length, the one
+	 * that ends first in {@code a} is selected, and its first occurrence in
+	 * {@code b}.
+	 */
+	static void lcs(char[] a, int m, char[] b, int n, Workspace w) {
+		int[] row = w.row;
+		for (int j = 0; j <= n; j++) {
+			row[j] = 0;
+		}
+		int max = 0;
+		int mx = 0;
+		int my = 0;
 		for (int i = 1; i <= m; i++) {
-			for (int j = 1; j <= n; j++) {
-				if (x.charAt(i - 1) == y.charAt(j - 1)) {
-					opt[i][j] = opt[i - 1][j - 1] + 1;
-					if (opt[i][j] > max) {
-						// remember where the maximum length is
-						max = opt[i][j];
+			char c = a[i - 1];
+			// right to left, so row[j - 1] still holds the previous row
+			for (int j = n; j >= 1; j--) {
+				if (c == b[j - 1]) {
+					int v = row[j - 1] + 1;
+					row[j] = v;
+					if (v > max) {
+						max = v;
 						mx = i;
+						my = j;
+					} else if (v == max && i == mx) {
+						my = j;
 					}
 				} else {
-					opt[i][j] = 0;
+					row[j] = 0;
 				}
 			}
 		}
+		w.length = max;
+		w.aEnd = mx;
+		w.bEnd = my;
+	}
+
+	public static int similarity(String one, String two) {
+		return similarity(one, two, 0);
+	}
+
+	/**
+	 * Returns the scorer selected with the "tmengine.scorer" system property,
+	 * {@link #LCS} if not set.
+	 */
+	public static String getDefaultScorer() {
+		String scorer = System.getProperty("tmengine.scorer", LCS);
+		return isScorer(scorer) ? scorer : LCS;
+	}
 
-		// recover the LCS
-		while (max > 0) {
-			result.insert(0, x.charAt(mx - 1));
-			max--;
-			mx--;
+	public static boolean isScorer(String scorer) {
+		return LCS.equals(scorer) || TILING.equals(scorer);
+	}
+
+	/**
+	 * Same as {@link #similarity(String, String, int)}, computed with the given
+	 * scorer.
+	 */
+	public static int similarity(String one, String two, int threshold, String scorer) {
+		if (TILING.equals(scorer)) {
+			return score(one, two, threshold, true);
 		}
+		return score(one, two, threshold, false);
+	}
 
-		return result.toString();
+	/**
+	 * Same as {@link #similarity(String, String)}, but gives up as soon as the
+	 * result cannot reach {@code threshold}. The exact similarity is returned
+	 * when it is at least {@code threshold}; otherwise the result is some value
+	 * lower than {@code threshold}.
+	 */
+	public static int similarity(String one, String two, int threshold) {
+		return score(one, two, threshold, false);
 	}
 
-	public static int similarity(String one, String two) {
-		int result = 0;
-		String x = one.trim();
-		String y = two.trim();
-		int longest = Math.max(x.length(), y.length());
+	private static int score(String one, String two, int threshold, boolean tiling) {
+		int xStart = trimStart(one);
+		int xEnd = trimEnd(one, xStart);
+		int yStart = trimStart(two);
+		int yEnd = trimEnd(two, yStart);
+		int longest = Math.max(xEnd - xStart, yEnd - yStart);
 		if (longest == 0) {
 			return 0;
 		}
-		String a;
-		String b;
-		if (x.length() == longest) {
-			a = x;
-			b = y;
+		Workspace w = getWorkspace(longest);
+		char[] a = w.a;
+		char[] b = w.b;
+		int m;
+		int n;
+		if (xEnd - xStart == longest) {
+			one.getChars(xStart, xEnd, a, 0);
+			two.getChars(yStart, yEnd, b, 0);
+			m = xEnd - xStart;
+			n = yEnd - yStart;
 		} else {
-			a = y;
-			b = x;
+			two.getChars(yStart, yEnd, a, 0);
+			one.getChars(xStart, xEnd, b, 0);
+			m = yEnd - yStart;
+			n = xEnd - xStart;
 		}
 		// a is the longest string
+		if (tiling) {
+			return tilingScore(w, m, n, longest, threshold);
+		}
+		int limit = longest * PENALTY / 100;
+		int count = -1;
+		// at best, everything left in b still matches and no more tiles are needed
+		int bound = upperBound(longest, m, n, count);
+		if (threshold > 0 && bound < threshold) {
+			return Math.max(bound, 0);
+		}
+		lcs(a, m, b, n, w);
+		while (w.length > limit && !isBlank(a, w.aEnd - w.length, w.aEnd)) {
+			count++;
+			// remove the common substring from both strings
+			System.arraycopy(a, w.aEnd, a, w.aEnd - w.length, m - w.aEnd);
+			m -= w.length;
+			System.arraycopy(b, w.bEnd, b, w.bEnd - w.length, n - w.bEnd);
+			n -= w.length;
+			bound = upperBound(longest, m, n, count);
+			if (threshold > 0 && bound < threshold) {
+				return Math.max(bound, 0);
+			}
+			lcs(a, m, b, n, w);
+		}
+		int result = 100 * (longest - m) / longest - count * PENALTY;
+		if (result < 0) {
+			result = 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Greedy String Tiling over {@code a[0..m)} and {@code b[0..n)}: the length
+	 * of the longest common substring is found by binary search, testing each
+	 * length with Karp-Rabin hashes in linear expected time. As in the LCS
+	 * scorer, each tile is removed from both arrays before looking for the next
+	 * one, so tiles, their count and the resulting score are the same. Tiles are
+	 * found one at a time, O(k (m + n) log n) for k tiles: removing a tile joins
+	 * the text around it, which can form a longer common substring, so the
+	 * single pass of Wise's algorithm, which marks tiles in place, would find
+	 * other tiles and change scores.
+	 */
+	private static int tilingScore(Workspace w, int m, int n, int longest, int threshold) {
+		char[] a = w.a;
+		char[] b = w.b;
+		int limit = longest * PENALTY / 100;
 		int count = -1;
-		int idx;
-		String lcs = lcs(a, b);
-		while (!lcs.trim().isEmpty() && lcs.length() > longest * PENALTY / 100) {
+		int bound = upperBound(longest, m, n, count);
+		if (threshold > 0 && bound < threshold) {
+			return Math.max(bound, 0);
+		}
+		while (true) {
+			int low = limit + 1;
+			int high = Math.min(m, n);
+			if (high < low || !findTile(w, m, n, low)) {
+				break;
+			}
+			int length = low;
+			int aEnd = w.aEnd;
+			int bEnd = w.bEnd;
+			low++;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (findTile(w, m, n, mid)) {
+					length = mid;
+					aEnd = w.aEnd;
+					bEnd = w.bEnd;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			if (isBlank(a, aEnd - length, aEnd)) {
+				break;
+			}
 			count++;
-			idx = a.indexOf(lcs);
-			a = a.substring(0, idx) + a.substring(idx + lcs.length());
-			idx = b.indexOf(lcs);
-			b = b.substring(0, idx) + b.substring(idx + lcs.length());
-			lcs = lcs(a, b);
+			System.arraycopy(a, aEnd, a, aEnd - length, m - aEnd);
+			m -= length;
+			System.arraycopy(b, bEnd, b, bEnd - length, n - bEnd);
+			n -= length;
+			bound = upperBound(longest, m, n, count);
+			if (threshold > 0 && bound < threshold) {
+				return Math.max(bound, 0);
+			}
 		}
-		result = 100 * (longest - a.length()) / longest - count * PENALTY;
+		int result = 100 * (longest - m) / longest - count * PENALTY;
 		if (result < 0) {
 			result = 0;
 		}
 		return result;
 	}
 
+	/**
+	 * Looks for a common substring of {@code length} characters, taking the first
+	 * one in {@code a} and its first occurrence in {@code b}. On success, sets
+	 * {@code w.aEnd} and {@code w.bEnd} to the exclusive end offsets.
+	 */
+	private static boolean findTile(Workspace w, int m, int n, int length) {
+		char[] a = w.a;
+		char[] b = w.b;
+		int[] hashes = w.hashes;
+		int[] next = w.next;
+		int[] head = w.head;
+		int mask = Integer.highestOneBit(n) * 2 - 1;
+		for (int i = 0; i <= mask; i++) {
+			head[i] = -1;
+		}
+		int power = 1;
+		for (int i = 1; i < length; i++) {
+			power *= HASH_BASE;
+		}
+		int hash = 0;
+		for (int j = 0; j < n; j++) {
+			if (j >= length) {
+				hash -= b[j - length] * power;
+			}
+			hash = hash * HASH_BASE + b[j];
+			if (j >= length - 1) {
+				hashes[j - length + 1] = hash;
+			}
+		}
+		// chain from the last window to the first, so chains start with the first
+		for (int start = n - length; start >= 0; start--) {
+			int slot = hashes[start] & mask;
+			next[start] = head[slot];
+			head[slot] = start;
+		}
+		hash = 0;
+		for (int i = 0; i < m; i++) {
+			if (i >= length) {
+				hash -= a[i - length] * power;
+			}
+			hash = hash * HASH_BASE + a[i];
+			if (i >= length - 1) {
+				int aStart = i - length + 1;
+				for (int start = head[hash & mask]; start != -1; start = next[start]) {
+					if (hashes[start] == hash && regionMatches(a, aStart, b, start, length)) {
+						w.aEnd = aStart + length;
+						w.bEnd = start + length;
+						w.length = length;
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean regionMatches(char[] a, int aStart, char[] b, int bStart, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aStart + i] != b[bStart + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the length of a string that similarity scores are based on,
+	 * without leading and trailing white space.
+	 */
+	public static int length(String string) {
+		int start = trimStart(string);
+		return trimEnd(string, start) - start;
+	}
+
+	/**
+	 * Returns the shortest length, as returned by {@link #length(String)}, of a
+	 * string that can reach {@code similarity} with a string of {@code length}
+	 * characters. Any tile scores at most the shortest length over the longest,
+	 * and without tiles the score is not higher than the tile penalty.
+	 */
+	public static int minLength(int length, int similarity) {
+		if (similarity <= PENALTY) {
+			return 0;
+		}
+		return (length * similarity + 99) / 100;
+	}
+
+	/**
+	 * Returns the longest length of a string that can reach {@code similarity}
+	 * with a string of {@code length} characters.
+	 */
+	public static int maxLength(int length, int similarity) {
+		if (similarity <= PENALTY) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) (length * 100l / similarity);
+	}
+
+	/**
+	 * Best score still reachable when {@code m} characters remain in the longest
+	 * string, {@code n} in the shortest and {@code count} tiles are penalized.
+	 * Further tiles can only remove up to {@code n} more characters and add
+	 * penalties.
+	 */
+	private static int upperBound(int longest, int m, int n, int count) {
+		return 100 * (longest - m + Math.min(m, n)) / longest - count * PENALTY;
+	}
+
+	// same definition of white space as String.trim()
+	private static int trimStart(String string) {
+		int start = 0;
+		while (start < string.length() && string.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(String string, int start) {
+		int end = string.length();
+		while (end > start && string.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	static boolean isBlank(char[] array, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (array[i] > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
@@ -11,13 +11,7 @@
  *******************************************************************************/
 package com.maxprograms.tmengine;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.TreeSet;
-import java.util.Vector;
+import java.util.Arrays;
 
 public class NGrams {
 
@@ -26,51 +20,218 @@ public class NGrams {
 	// allow hyphen in terms
 	public static final String TERM_SEPARATORS = " \u00A0\r\n\f\t\u2028\u2029,.;\":<>¿?¡!()[]{}=+/*\u00AB\u00BB\u201C\u201D\u201E\uFF00";
 
+	private static final boolean[] ASCII_SEPARATORS = new boolean[128];
+	private static final char[] OTHER_SEPARATORS;
+
+	// per thread work area, grown on demand and reused across calls
+	private static final ThreadLocal<int[]> buffers = ThreadLocal.withInitial(() -> new int[256]);
+
+	static {
+		StringBuilder others = new StringBuilder();
+		for (int i = 0; i < SEPARATORS.length(); i++) {
+			char c = SEPARATORS.charAt(i);
+			if (c < ASCII_SEPARATORS.length) {
+				ASCII_SEPARATORS[c] = true;
+			} else {
+				others.append(c);
+			}
+		}
+		OTHER_SEPARATORS = others.toString().toCharArray();
+		Arrays.sort(OTHER_SEPARATORS);
+	}
+
+	private static final INGramStrategy WORD_NGRAMS = new WordNGrams();
+	private static final INGramStrategy CJK_NGRAMS = new CJKNGrams();
+
 	private NGrams() {
 		// private for security
 	}
-	
+
+	/**
+	 * Returns the strategy that new fuzzy indexes use for a language. Chinese,
+	 * Japanese and Thai text is usually written without spaces and is indexed
+	 * with overlapping character bigrams; other languages use word trigrams.
+	 */
+	public static INGramStrategy getStrategy(String lang) {
+		String code = lang.toLowerCase();
+		int index = code.indexOf('-');
+		if (index != -1) {
+			code = code.substring(0, index);
+		}
+		if ("zh".equals(code) || "ja".equals(code) || "th".equals(code)) {
+			return CJK_NGRAMS;
+		}
+		return WORD_NGRAMS;
+	}
+
+	public static INGramStrategy getStrategyByName(String name) {
+		if (WORD_NGRAMS.getName().equals(name)) {
+			return WORD_NGRAMS;
+		}
+		if (CJK_NGRAMS.getName().equals(name)) {
+			return CJK_NGRAMS;
+		}
+		return null;
+	}
+
+	/**
+	 * Strategy used by indexes created before strategies were recorded.
+	 */
+	public static INGramStrategy getDefaultStrategy() {
+		return WORD_NGRAMS;
+	}
+
+	/**
+	 * Returns the sorted, distinct hash codes of the n-grams of a string. Hash
+	 * values are those of {@code String.hashCode()} for each n-gram, so indexes
+	 * built by older versions remain valid.
+	 */
 	public static int[] getNGrams(String string) {
 		String src = string.toLowerCase();
-		List<String> words = buildWordList(src);
-		Set<String> set = Collections.synchronizedSortedSet(new TreeSet<>());
-		
-		Iterator<String> it = words.iterator();
-		while (it.hasNext()) {
-			String word = it.next();
-			char[] array = word.toCharArray();
-			int length = word.length();
-			int ngrams = length / NGRAMSIZE;
-			if (ngrams * NGRAMSIZE < length) {
-				ngrams++;
+		int[] buffer = getBuffer(src.length());
+		int size = getNGrams(src, buffer);
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * Writes the sorted, distinct n-gram hashes of an already lowercased string
+	 * into {@code buffer} and returns how many were written. The buffer must have
+	 * room for at least {@code src.length()} values.
+	 */
+	static int getNGrams(String src, int[] buffer) {
+		int count = 0;
+		int length = src.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && isSeparator(src.charAt(i))) {
+				i++;
+			}
+			// split each word in consecutive, non overlapping grams
+			int hash = 0;
+			int chars = 0;
+			while (i < length && !isSeparator(src.charAt(i))) {
+				hash = 31 * hash + src.charAt(i++);
+				if (++chars == NGRAMSIZE) {
+					buffer[count++] = hash;
+					hash = 0;
+					chars = 0;
+				}
+			}
+			if (chars > 0) {
+				buffer[count++] = hash;
 			}
-			for (int i = 0; i < ngrams; i++) {
-				StringBuilder gram = new StringBuilder();
-				for (int j = 0; j < NGRAMSIZE; j++) {
-					if (i * NGRAMSIZE + j < length) {
-						gram.append(array[i * NGRAMSIZE + j]);
+		}
+		return sortUnique(buffer, count);
+	}
+
+	/**
+	 * Same as {@link #getNGrams(String, int[])}, but runs of Chinese, Japanese
+	 * or Thai characters produce overlapping bigrams instead of consecutive
+	 * trigrams. A run of a single character produces a unigram.
+	 */
+	static int getBigrams(String src, int[] buffer) {
+		int count = 0;
+		int length = src.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && isBigramSeparator(src.charAt(i))) {
+				i++;
+			}
+			while (i < length && !isBigramSeparator(src.charAt(i))) {
+				char c = src.charAt(i);
+				if (isBigramChar(c)) {
+					int start = i++;
+					while (i < length && isBigramChar(src.charAt(i))) {
+						buffer[count++] = 31 * src.charAt(i - 1) + src.charAt(i);
+						i++;
+					}
+					if (i - start == 1) {
+						buffer[count++] = c;
+					}
+				} else {
+					int hash = 0;
+					int chars = 0;
+					while (i < length && !isBigramSeparator(src.charAt(i)) && !isBigramChar(src.charAt(i))) {
+						hash = 31 * hash + src.charAt(i++);
+						if (++chars == NGRAMSIZE) {
+							buffer[count++] = hash;
+							hash = 0;
+							chars = 0;
+						}
+					}
+					if (chars > 0) {
+						buffer[count++] = hash;
 					}
 				}
-				set.add("" + gram.toString().hashCode());
 			}
 		}
-		
-		int[] result = new int[set.size()];
-		int idx = 0;
-		it = set.iterator();
-		while (it.hasNext()) {
-			result[idx++] = Integer.parseInt(it.next());
+		return sortUnique(buffer, count);
+	}
+
+	private static boolean isBigramChar(char c) {
+		return (c >= '\u3400' && c <= '\u4DBF') // CJK Extension A
+				|| (c >= '\u4E00' && c <= '\u9FFF') // CJK Unified Ideographs
+				|| (c >= '\uF900' && c <= '\uFAFF') // CJK Compatibility Ideographs
+				|| (c >= '\u3005' && c <= '\u3007') // iteration marks
+				|| (c >= '\u3040' && c <= '\u30FF') // Hiragana and Katakana
+				|| (c >= '\u31F0' && c <= '\u31FF') // Katakana extensions
+				|| (c >= '\uFF66' && c <= '\uFF9F') // halfwidth Katakana
+				|| (c >= '\u0E00' && c <= '\u0E7F'); // Thai
+	}
+
+	private static boolean isBigramSeparator(char c) {
+		return isSeparator(c) || (c >= '\u3000' && c <= '\u3004') // ideographic space and punctuation
+				|| (c >= '\u3008' && c <= '\u3020') // brackets
+				|| (c >= '\uFF01' && c <= '\uFF0F') // fullwidth punctuation
+				|| (c >= '\uFF1A' && c <= '\uFF20') || (c >= '\uFF5B' && c <= '\uFF65');
+	}
+
+	static int[] getBuffer(int capacity) {
+		int[] buffer = buffers.get();
+		if (buffer.length < capacity) {
+			buffer = new int[Math.max(capacity, buffer.length * 2)];
+			buffers.set(buffer);
+		}
+		return buffer;
+	}
+
+	static int sortUnique(int[] values, int count) {
+		if (count < 2) {
+			return count;
+		}
+		Arrays.sort(values, 0, count);
+		int size = 1;
+		for (int i = 1; i < count; i++) {
+			if (values[i] != values[size - 1]) {
+				values[size++] = values[i];
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Sorts n-grams by ascending document frequency, keeping both arrays aligned.
+	 */
+	static void sortByFrequency(int[] ngrams, int[] df) {
+		for (int i = 1; i < ngrams.length; i++) {
+			int ngram = ngrams[i];
+			int freq = df[i];
+			int j = i - 1;
+			while (j >= 0 && df[j] > freq) {
+				ngrams[j + 1] = ngrams[j];
+				df[j + 1] = df[j];
+				j--;
+			}
+			ngrams[j + 1] = ngram;
+			df[j + 1] = freq;
 		}
-		return result;
 	}
 
-	private static List<String> buildWordList(String src) {
-		List<String> result = new Vector<>();
-		StringTokenizer tokenizer = new StringTokenizer(src, SEPARATORS);
-		while (tokenizer.hasMoreElements()) {
-			result.add(tokenizer.nextToken());
+	static boolean isSeparator(char c) {
+		if (c < ASCII_SEPARATORS.length) {
+			return ASCII_SEPARATORS[c];
 		}
-		return result;
+		return Arrays.binarySearch(OTHER_SEPARATORS, c) >= 0;
 	}
 
 }
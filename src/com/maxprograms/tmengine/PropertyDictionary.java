@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapdb.BTreeMap;
+import org.mapdb.Fun;
+
+/**
+ * Encodes the properties of a TU as numbers. Property names and the values
+ * that repeat, such as projects, customers or creation ids, are numbered in
+ * dictionaries stored with the memory; values of properties with more than
+ * {@link #MAX_VALUES} distinct values, such as tuids, are stored as text.
+ * Numbers and text lengths are written as variable length integers.
+ */
+class PropertyDictionary {
+
+	static final int MAX_VALUES = 1024;
+
+	private BTreeMap<Integer, String> names;
+	private BTreeMap<Integer, Fun.Tuple2<Integer, String>> values;
+
+	private Map<String, Integer> nameIds;
+	private Map<Fun.Tuple2<Integer, String>, Integer> valueIds;
+	private volatile String[] nameArray;
+	private volatile String[] valueArray;
+	private int nameCount;
+	private int valueCount;
+	private int[] valuesPerName;
+
+	PropertyDictionary(BTreeMap<Integer, String> names, BTreeMap<Integer, Fun.Tuple2<Integer, String>> values) {
+		this.names = names;
+		this.values = values;
+		nameIds = new ConcurrentHashMap<>();
+		valueIds = new ConcurrentHashMap<>();
+		nameArray = new String[Math.max(16, names.size())];
+		valueArray = new String[Math.max(64, values.size())];
+		valuesPerName = new int[nameArray.length];
+		Iterator<Entry<Integer, String>> it = names.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<Integer, String> entry = it.next();
+			nameIds.put(entry.getValue(), entry.getKey());
+			nameArray[entry.getKey()] = entry.getValue();
+			nameCount++;
+		}
+		Iterator<Entry<Integer, Fun.Tuple2<Integer, String>>> vt = values.entrySet().iterator();
+		while (vt.hasNext()) {
+			Entry<Integer, Fun.Tuple2<Integer, String>> entry = vt.next();
+			valueIds.put(entry.getValue(), entry.getKey());
+			valueArray[entry.getKey()] = entry.getValue().b;
+			valuesPerName[entry.getValue().a]++;
+			valueCount++;
+		}
+	}
+
+	byte[] encode(Map<String, String> properties) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writeNumber(output, properties.size());
+		Iterator<Entry<String, String>> it = properties.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, String> entry = it.next();
+			int name = getNameId(entry.getKey());
+			writeNumber(output, name);
+			int value = getValueId(name, entry.getValue());
+			// 0 means the value follows as text
+			writeNumber(output, value + 1);
+			if (value == -1) {
+				byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+				writeNumber(output, bytes.length);
+				output.write(bytes, 0, bytes.length);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	Map<String, String> decode(byte[] data) {
+		String[] currentNames = nameArray;
+		String[] currentValues = valueArray;
+		int[] position = new int[1];
+		int size = readNumber(data, position);
+		Map<String, String> properties = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++) {
+			String name = currentNames[readNumber(data, position)];
+			int value = readNumber(data, position) - 1;
+			if (value == -1) {
+				int length = readNumber(data, position);
+				properties.put(name, new String(data, position[0], length, StandardCharsets.UTF_8));
+				position[0] += length;
+			} else {
+				properties.put(name, currentValues[value]);
+			}
+		}
+		return properties;
+	}
+
+	private int getNameId(String name) {
+		Integer id = nameIds.get(name);
+		return id != null ? id : addName(name);
+	}
+
+	private synchronized int addName(String name) {
+		Integer id = nameIds.get(name);
+		if (id != null) {
+			return id;
+		}
+		int next = nameCount;
+		String[] array = nameArray;
+		if (next == array.length) {
+			valuesPerName = Arrays.copyOf(valuesPerName, next * 2);
+			array = Arrays.copyOf(array, next * 2);
+		}
+		names.put(next, name);
+		array[next] = name;
+		nameArray = array;
+		nameCount++;
+		// published last, so readers find the name in the array
+		nameIds.put(name, next);
+		return next;
+	}
+
+	// returns -1 for values stored as text
+	private int getValueId(int name, String value) {
+		Fun.Tuple2<Integer, String> key = Fun.t2(name, value);
+		Integer id = valueIds.get(key);
+		if (id != null) {
+			return id;
+		}
+		return valuesPerName[name] < MAX_VALUES ? addValue(key) : -1;
+	}
+
+	private synchronized int addValue(Fun.Tuple2<Integer, String> key) {
+		Integer id = valueIds.get(key);
+		if (id != null) {
+			return id;
+		}
+		if (valuesPerName[key.a] == MAX_VALUES) {
+			return -1;
+		}
+		int next = valueCount;
+		String[] array = valueArray;
+		if (next == array.length) {
+			array = Arrays.copyOf(array, next * 2);
+		}
+		values.put(next, key);
+		array[next] = key.b;
+		valueArray = array;
+		valueCount++;
+		valuesPerName[key.a]++;
+		valueIds.put(key, next);
+		return next;
+	}
+
+	private static void writeNumber(ByteArrayOutputStream output, int number) {
+		int value = number;
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+	private static int readNumber(byte[] data, int[] position) {
+		int result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position[0]++];
+			result |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return result;
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Properties of a TU as read from the database, decoded the first time they
+ * are used. Matches that are only counted or ranked never decode them.
+ */
+class PropertyMap extends AbstractMap<String, String> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient PropertyDictionary dictionary;
+	private transient byte[] data;
+	private Map<String, String> map;
+
+	PropertyMap(PropertyDictionary dictionary, byte[] data) {
+		this.dictionary = dictionary;
+		this.data = data;
+	}
+
+	private synchronized Map<String, String> getMap() {
+		if (map == null) {
+			map = dictionary.decode(data);
+			data = null;
+		}
+		return map;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return getMap().entrySet();
+	}
+
+	@Override
+	public int size() {
+		return getMap().size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getMap().containsKey(key);
+	}
+
+	@Override
+	public String get(Object key) {
+		return getMap().get(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return getMap().put(key, value);
+	}
+
+	@Override
+	public String remove(Object key) {
+		return getMap().remove(key);
+	}
+
+	private Object writeReplace() {
+		return new LinkedHashMap<>(getMap());
+	}
+}
@@ -0,0 +1,484 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of TUV records and TU properties keyed by language and
+ * docId. Values are encoded into blocks of direct buffers, so a large cache
+ * does not add to the heap scanned by the garbage collector; the index of
+ * the entries and their LRU order are kept in arrays of primitives. A value is
+ * only admitted the second time it is missed within a while, so that scans
+ * such as exports or index rebuilds do not evict the entries searches keep
+ * reading.
+ */
+class RecordCache {
+
+	interface Loader<T> {
+		T load() throws IOException;
+	}
+
+	private static final int BLOCK_SIZE = 64;
+	private static final int BLOCK_PAYLOAD = BLOCK_SIZE - 4;
+	private static final int INITIAL_ENTRIES = 1024;
+	private static final int SLAB_BLOCKS = 1 << 14;
+	private static final int SEGMENTS = 8;
+	private static final int DOORKEEPER_BITS = 1 << 20;
+
+	// language 0 holds TU properties
+	private Map<String, Integer> languages;
+	private AtomicInteger lastLanguage;
+	private Segment[] segments;
+	private AtomicLong hits;
+	private AtomicLong misses;
+
+	/**
+	 * @param capacity maximum number of bytes of direct memory used
+	 */
+	RecordCache(long capacity) {
+		languages = new ConcurrentHashMap<>();
+		lastLanguage = new AtomicInteger();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		segments = new Segment[SEGMENTS];
+		long blocks = Math.min(capacity / BLOCK_SIZE / SEGMENTS, Integer.MAX_VALUE);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment((int) blocks);
+		}
+	}
+
+	String[] getTuv(String lang, int id, Loader<String[]> loader) throws IOException {
+		long key = key(lang, id);
+		Segment segment = getSegment(key);
+		byte[] bytes = segment.get(key);
+		if (bytes != null) {
+			hits.incrementAndGet();
+			return decodeStrings(bytes);
+		}
+		misses.incrementAndGet();
+		long stamp = segment.getStamp();
+		String[] tuv = loader.load();
+		if (tuv != null && segment.admit(key, stamp)) {
+			segment.put(key, encodeStrings(tuv), stamp);
+		}
+		return tuv;
+	}
+
+	Map<String, String> getTu(int id, Loader<Map<String, String>> loader) throws IOException {
+		long key = key(0, id);
+		Segment segment = getSegment(key);
+		byte[] bytes = segment.get(key);
+		if (bytes != null) {
+			hits.incrementAndGet();
+			String[] pairs = decodeStrings(bytes);
+			// same iteration order as the map that was cached
+			Map<String, String> tu = new LinkedHashMap<>();
+			for (int i = 0; i < pairs.length; i += 2) {
+				tu.put(pairs[i], pairs[i + 1]);
+			}
+			return tu;
+		}
+		misses.incrementAndGet();
+		long stamp = segment.getStamp();
+		Map<String, String> tu = loader.load();
+		if (tu != null && segment.admit(key, stamp)) {
+			String[] pairs = new String[tu.size() * 2];
+			int i = 0;
+			Iterator<Entry<String, String>> it = tu.entrySet().iterator();
+			while (it.hasNext() && i < pairs.length) {
+				Entry<String, String> entry = it.next();
+				pairs[i++] = entry.getKey();
+				pairs[i++] = entry.getValue();
+			}
+			segment.put(key, encodeStrings(pairs), stamp);
+		}
+		return tu;
+	}
+
+	void invalidateTuv(String lang, int id) {
+		long key = key(lang, id);
+		getSegment(key).remove(key);
+	}
+
+	void invalidateTu(int id) {
+		long key = key(0, id);
+		getSegment(key).remove(key);
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Removes all entries and releases the direct buffers.
+	 */
+	void clear() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i].clear();
+		}
+	}
+
+	private long key(String lang, int id) {
+		Integer index = languages.get(lang);
+		if (index == null) {
+			index = languages.computeIfAbsent(lang, l -> lastLanguage.incrementAndGet());
+		}
+		return key(index, id);
+	}
+
+	private static long key(int lang, int id) {
+		return ((long) lang << 32) | (id & 0xFFFFFFFFL);
+	}
+
+	private Segment getSegment(long key) {
+		return segments[(int) (mix(key) >>> 61)];
+	}
+
+	static long mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	static byte[] encodeStrings(String[] strings) {
+		byte[][] utf8 = new byte[strings.length][];
+		int size = 4;
+		for (int i = 0; i < strings.length; i++) {
+			utf8[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+			size += 4 + utf8[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(strings.length);
+		for (int i = 0; i < utf8.length; i++) {
+			buffer.putInt(utf8[i].length);
+			buffer.put(utf8[i]);
+		}
+		return buffer.array();
+	}
+
+	static String[] decodeStrings(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			int length = buffer.getInt();
+			strings[i] = new String(bytes, buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		}
+		return strings;
+	}
+
+	/**
+	 * Independent LRU part of the cache, holding the keys of one hash range.
+	 * Blocks are numbered across slabs of {@link #SLAB_BLOCKS} blocks that are
+	 * allocated when first needed. The first int of a block is the number of
+	 * the next block of the same value, or of the next free block.
+	 * <p>
+	 * Entries are numbered and kept in parallel arrays with their key, value
+	 * length, first block and LRU links; {@code table} is an open addressing
+	 * table of entry numbers plus one.
+	 */
+	private static class Segment {
+
+		int maxBlocks;
+		int usedBlocks;
+		ByteBuffer[] slabs;
+		int freeBlock;
+		int freeCount;
+		long[] keys;
+		int[] lengths;
+		int[] firstBlocks;
+		int[] older;
+		int[] newer;
+		int oldest;
+		int newest;
+		int usedEntries;
+		int freeEntry;
+		int[] table;
+		int size;
+		long[] doorkeeper;
+		int admissions;
+		long stamp;
+
+		Segment(int maxBlocks) {
+			this.maxBlocks = maxBlocks;
+			slabs = new ByteBuffer[(maxBlocks + SLAB_BLOCKS - 1) / SLAB_BLOCKS];
+			doorkeeper = new long[DOORKEEPER_BITS / 64];
+			reset();
+		}
+
+		private void reset() {
+			usedBlocks = 0;
+			freeBlock = -1;
+			freeCount = 0;
+			keys = new long[INITIAL_ENTRIES];
+			lengths = new int[INITIAL_ENTRIES];
+			firstBlocks = new int[INITIAL_ENTRIES];
+			older = new int[INITIAL_ENTRIES];
+			newer = new int[INITIAL_ENTRIES];
+			oldest = -1;
+			newest = -1;
+			usedEntries = 0;
+			freeEntry = -1;
+			table = new int[INITIAL_ENTRIES * 2];
+			size = 0;
+		}
+
+		synchronized long getStamp() {
+			return stamp;
+		}
+
+		synchronized byte[] get(long key) {
+			int entry = find(key);
+			if (entry == -1) {
+				return null;
+			}
+			if (entry != newest) {
+				unlink(entry);
+				link(entry);
+			}
+			byte[] value = new byte[lengths[entry]];
+			int block = firstBlocks[entry];
+			int offset = 0;
+			while (offset < value.length) {
+				int length = Math.min(BLOCK_PAYLOAD, value.length - offset);
+				ByteBuffer slab = slabs[block / SLAB_BLOCKS];
+				int position = (block % SLAB_BLOCKS) * BLOCK_SIZE;
+				slab.position(position + 4);
+				slab.get(value, offset, length);
+				offset += length;
+				block = slab.getInt(position);
+			}
+			return value;
+		}
+
+		/**
+		 * Stores a value read from the database, unless an entry was invalidated
+		 * since {@code readStamp} was taken, as the value may be older than the
+		 * change that invalidated it.
+		 */
+		synchronized void put(long key, byte[] value, long readStamp) {
+			if (readStamp != stamp || find(key) != -1) {
+				return;
+			}
+			int needed = Math.max(1, (value.length + BLOCK_PAYLOAD - 1) / BLOCK_PAYLOAD);
+			if (needed > maxBlocks / 4) {
+				return;
+			}
+			while (freeCount + maxBlocks - usedBlocks < needed) {
+				delete(oldest);
+			}
+			int first = -1;
+			int previous = -1;
+			int offset = 0;
+			for (int i = 0; i < needed; i++) {
+				int block;
+				if (freeCount > 0) {
+					block = freeBlock;
+					freeBlock = slabs[block / SLAB_BLOCKS].getInt((block % SLAB_BLOCKS) * BLOCK_SIZE);
+					freeCount--;
+				} else {
+					block = newBlock();
+				}
+				int length = Math.min(BLOCK_PAYLOAD, value.length - offset);
+				ByteBuffer slab = slabs[block / SLAB_BLOCKS];
+				int position = (block % SLAB_BLOCKS) * BLOCK_SIZE;
+				slab.putInt(position, -1);
+				slab.position(position + 4);
+				slab.put(value, offset, length);
+				offset += length;
+				if (previous == -1) {
+					first = block;
+				} else {
+					slabs[previous / SLAB_BLOCKS].putInt((previous % SLAB_BLOCKS) * BLOCK_SIZE, block);
+				}
+				previous = block;
+			}
+			int entry = newEntry();
+			keys[entry] = key;
+			lengths[entry] = value.length;
+			firstBlocks[entry] = first;
+			link(entry);
+			insert(entry);
+		}
+
+		/**
+		 * Checks if a value read from the database should be stored. A key is
+		 * admitted when it was already missed since the doorkeeper was reset.
+		 */
+		synchronized boolean admit(long key, long readStamp) {
+			if (readStamp != stamp) {
+				return false;
+			}
+			int bit = (int) (mix(key) & (DOORKEEPER_BITS - 1));
+			long mask = 1L << bit;
+			if ((doorkeeper[bit >>> 6] & mask) != 0) {
+				return true;
+			}
+			doorkeeper[bit >>> 6] |= mask;
+			if (++admissions == DOORKEEPER_BITS / 8) {
+				doorkeeper = new long[DOORKEEPER_BITS / 64];
+				admissions = 0;
+			}
+			return false;
+		}
+
+		private int newBlock() {
+			int block = usedBlocks++;
+			if (slabs[block / SLAB_BLOCKS] == null) {
+				int blocks = Math.min(SLAB_BLOCKS, maxBlocks - block);
+				slabs[block / SLAB_BLOCKS] = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+			}
+			return block;
+		}
+
+		private int newEntry() {
+			if (freeEntry != -1) {
+				int entry = freeEntry;
+				freeEntry = newer[entry];
+				return entry;
+			}
+			if (usedEntries == keys.length) {
+				int capacity = keys.length * 2;
+				keys = Arrays.copyOf(keys, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				firstBlocks = Arrays.copyOf(firstBlocks, capacity);
+				older = Arrays.copyOf(older, capacity);
+				newer = Arrays.copyOf(newer, capacity);
+			}
+			return usedEntries++;
+		}
+
+		// links an entry as the most recently used
+		private void link(int entry) {
+			older[entry] = newest;
+			newer[entry] = -1;
+			if (newest == -1) {
+				oldest = entry;
+			} else {
+				newer[newest] = entry;
+			}
+			newest = entry;
+		}
+
+		private void unlink(int entry) {
+			if (older[entry] == -1) {
+				oldest = newer[entry];
+			} else {
+				newer[older[entry]] = newer[entry];
+			}
+			if (newer[entry] == -1) {
+				newest = older[entry];
+			} else {
+				older[newer[entry]] = older[entry];
+			}
+		}
+
+		private int slot(long key) {
+			return (int) mix(key) & (table.length - 1);
+		}
+
+		private int find(long key) {
+			int mask = table.length - 1;
+			for (int i = slot(key); table[i] != 0; i = (i + 1) & mask) {
+				if (keys[table[i] - 1] == key) {
+					return table[i] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private void insert(int entry) {
+			if ((size + 1) * 2 > table.length) {
+				int[] old = table;
+				table = new int[old.length * 2];
+				for (int i = 0; i < old.length; i++) {
+					if (old[i] != 0) {
+						place(old[i]);
+					}
+				}
+			}
+			place(entry + 1);
+			size++;
+		}
+
+		private void place(int value) {
+			int mask = table.length - 1;
+			int i = slot(keys[value - 1]);
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = value;
+		}
+
+		// removes an entry and releases its blocks
+		private void delete(int entry) {
+			int mask = table.length - 1;
+			int hole = slot(keys[entry]);
+			while (table[hole] != entry + 1) {
+				hole = (hole + 1) & mask;
+			}
+			table[hole] = 0;
+			size--;
+			// move back the entries that can no longer be reached past the hole
+			for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+				int home = slot(keys[table[i] - 1]);
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					table[hole] = table[i];
+					table[i] = 0;
+					hole = i;
+				}
+			}
+			unlink(entry);
+			int last = firstBlocks[entry];
+			int count = 1;
+			int next = slabs[last / SLAB_BLOCKS].getInt((last % SLAB_BLOCKS) * BLOCK_SIZE);
+			while (next != -1) {
+				last = next;
+				count++;
+				next = slabs[last / SLAB_BLOCKS].getInt((last % SLAB_BLOCKS) * BLOCK_SIZE);
+			}
+			slabs[last / SLAB_BLOCKS].putInt((last % SLAB_BLOCKS) * BLOCK_SIZE, freeBlock);
+			freeBlock = firstBlocks[entry];
+			freeCount += count;
+			newer[entry] = freeEntry;
+			freeEntry = entry;
+		}
+
+		synchronized void remove(long key) {
+			stamp++;
+			int entry = find(key);
+			if (entry != -1) {
+				delete(entry);
+			}
+		}
+
+		synchronized void clear() {
+			stamp++;
+			slabs = new ByteBuffer[slabs.length];
+			reset();
+		}
+	}
+}
@@ -31,8 +31,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -47,6 +49,7 @@ import org.xml.sax.SAXException;
 public class SQLEngine implements ITmEngine {
 
 	private static final Logger LOGGER = System.getLogger(SQLEngine.class.getName());
+	private static final int CANDIDATES_BATCH = 500;
 
 	private Connection conn;
 	private String dbName;
@@ -75,7 +78,13 @@ public class SQLEngine implements ITmEngine {
 
 	private Hashtable<String, PreparedStatement> insertNgram;
 	private Hashtable<String, PreparedStatement> removeNgram;
-	private Hashtable<String, PreparedStatement> selectNgram;
+	private Hashtable<String, PreparedStatement> insertFreq;
+	private Hashtable<String, PreparedStatement> removeFreq;
+	private Set<String> checkedFrequencies;
+	private AtomicLong skippedPostings = new AtomicLong();
+	private String scorer = MatchQuality.getDefaultScorer();
+	private Hashtable<String, INGramStrategy> strategies;
+	private boolean strategiesChecked;
 
 	private Set<String> tuAttributes;
 
@@ -107,7 +116,10 @@ public class SQLEngine implements ITmEngine {
 		}
 		insertNgram = new Hashtable<>();
 		removeNgram = new Hashtable<>();
-		selectNgram = new Hashtable<>();
+		insertFreq = new Hashtable<>();
+		removeFreq = new Hashtable<>();
+		checkedFrequencies = Collections.synchronizedSortedSet(new TreeSet<>());
+		strategies = new Hashtable<>();
 	}
 
 	@Override
@@ -136,6 +148,8 @@ public class SQLEngine implements ITmEngine {
 				stmt.execute("CREATE TABLE `" + dbName + "`.tuprop ( tuid VARCHAR(30) NOT NULL,"
 						+ " propType VARCHAR(30) NOT NULL, content TEXT, PRIMARY KEY (tuid, propType)" + ");");
 				stmt.execute("CREATE TABLE `" + dbName + "`.langs ( lang VARCHAR(15) NOT NULL);");
+				stmt.execute("CREATE TABLE `" + dbName + "`.ngrams ( lang VARCHAR(15) NOT NULL,"
+						+ " strategy VARCHAR(30) NOT NULL, PRIMARY KEY (lang));");
 			}
 		}
 	}
@@ -198,10 +212,15 @@ public class SQLEngine implements ITmEngine {
 		while (it.hasNext()) {
 			removeNgram.get(it.next()).close();
 		}
-		keys = selectNgram.keySet();
+		keys = insertFreq.keySet();
 		it = keys.iterator();
 		while (it.hasNext()) {
-			selectNgram.get(it.next()).close();
+			insertFreq.get(it.next()).close();
+		}
+		keys = removeFreq.keySet();
+		it = keys.iterator();
+		while (it.hasNext()) {
+			removeFreq.get(it.next()).close();
 		}
 		conn.close();
 	}
@@ -240,6 +259,12 @@ public class SQLEngine implements ITmEngine {
 	@Override
 	public void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> properties)
 			throws IOException, SAXException, ParserConfigurationException, SQLException {
+		exportMemory(tmxfile, langs, srcLang, properties, null);
+	}
+
+	@Override
+	public void exportMemory(String tmxfile, Set<String> langs, String srcLang, Map<String, String> properties,
+			TuFilter filter) throws IOException, SAXException, ParserConfigurationException, SQLException {
 		if (languages == null) {
 			getAllLanguages();
 		}
@@ -249,8 +274,12 @@ public class SQLEngine implements ITmEngine {
 		try (FileOutputStream output = new FileOutputStream(new File(tmxfile))) {
 			writeHeader(output, srcLang, properties);
 			writeString(output, "  <body>\n");
-			try (Statement stmt = conn.createStatement()) {
-				try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT tuid FROM `" + dbName + "`.tuprop")) {
+			List<String> params = new Vector<>();
+			String condition = filterCondition(filter, params);
+			try (PreparedStatement stmt = conn.prepareStatement("SELECT DISTINCT tuid FROM `" + dbName + "`.tuprop"
+					+ (condition.isEmpty() ? "" : " WHERE " + condition))) {
+				setParams(stmt, 1, params);
+				try (ResultSet rs = stmt.executeQuery()) {
 					while (rs.next()) {
 						String tuid = rs.getString(1);
 						Element tu = getTu(tuid, langs);
@@ -341,54 +370,113 @@ public class SQLEngine implements ITmEngine {
 	@Override
 	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, SQLException {
-		List<Match> result = new Vector<>();
+		return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, 0);
+	}
 
-		int[] ngrams = NGrams.getNGrams(searchStr);
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults)
+			throws IOException, SAXException, ParserConfigurationException, SQLException {
+		return searchTranslation(searchStr, srcLang, tgtLang, similarity, caseSensitive, maxResults, null);
+	}
+
+	@Override
+	public List<Match> searchTranslation(String searchStr, String srcLang, String tgtLang, int similarity,
+			boolean caseSensitive, int maxResults, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException, SQLException {
+		TopMatches top = new TopMatches(maxResults);
+
+		int[] ngrams = getStrategy(srcLang).getNGrams(searchStr);
 		int size = ngrams.length;
 		if (size == 0) {
-			return result;
+			return top.getMatches();
 		}
 
 		int minLength = searchStr.length() * similarity / 100;
 		int maxLength = searchStr.length() * (200 - similarity) / 100;
+		int min = size * similarity / 100;
+		int max = size * (200 - similarity) / 100;
 
-		StringBuilder set = new StringBuilder();
-		set.append("" + ngrams[0]);
-		for (int i = 1; i < size; i++) {
-			set.append("," + ngrams[i]);
-		}
-
-		Set<String> candidates = Collections.synchronizedSortedSet(new TreeSet<>());
 		String lowerSearch = searchStr.toLowerCase();
+		String matrix = "`" + dbName + "`.matrix_" + srcLang.replace('-', '_').toLowerCase();
 
-		PreparedStatement stmt = selectNgram.get(srcLang);
-		if (stmt == null) {
-			stmt = conn.prepareStatement("SELECT tuid from `" + dbName + "`.matrix_"
-					+ srcLang.replace('-', '_').toLowerCase() + " WHERE ngram in (?) and segSize>=? AND segSize<=?");
-			selectNgram.put(srcLang, stmt);
-		}
-		stmt.setString(1, set.toString());
-		stmt.setInt(2, minLength);
-		stmt.setInt(3, maxLength);
+		// A TU that shares at least "min" n-grams with the search string must
+		// contain one of the "size - min + 1" rarest ones. Only those are looked
+		// up in the n-gram index; common n-grams are checked per candidate
+		int[] df = getFrequencies(srcLang, ngrams);
+		NGrams.sortByFrequency(ngrams, df);
+		int probe = size - Math.max(min, 1) + 1;
 
-		try (ResultSet rs = stmt.executeQuery()) {
-			while (rs.next()) {
-				String tuid = rs.getString(1);
-				candidates.add(tuid);
+		// TUs left out by the filter are not counted
+		List<String> params = new Vector<>();
+		String condition = filterCondition(filter, params);
+		Map<String, Integer> counts = new TreeMap<>();
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT tuid, COUNT(*) FROM " + matrix
+				+ " WHERE ngram IN (" + placeholders(probe) + ") AND segSize>=? AND segSize<=?"
+				+ (condition.isEmpty() ? "" : " AND " + condition) + " GROUP BY tuid")) {
+			int index = 1;
+			for (int i = 0; i < probe; i++) {
+				stmt.setInt(index++, ngrams[i]);
+			}
+			stmt.setInt(index++, minLength);
+			stmt.setInt(index++, maxLength);
+			setParams(stmt, index, params);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					counts.put(rs.getString(1), rs.getInt(2));
+				}
+			}
+		}
+		long skipped = 0l;
+		if (probe < size) {
+			int remaining = size - probe;
+			counts.values().removeIf(count -> count + remaining < min);
+			for (int i = probe; i < size; i++) {
+				skipped += df[i];
 			}
+			List<String> tuids = new Vector<>(counts.keySet());
+			for (int from = 0; from < tuids.size(); from += CANDIDATES_BATCH) {
+				List<String> batch = tuids.subList(from, Math.min(from + CANDIDATES_BATCH, tuids.size()));
+				try (PreparedStatement stmt = conn.prepareStatement(
+						"SELECT tuid, COUNT(*) FROM " + matrix + " WHERE tuid IN (" + placeholders(batch.size())
+								+ ") AND ngram IN (" + placeholders(remaining) + ") GROUP BY tuid")) {
+					int index = 1;
+					for (int i = 0; i < batch.size(); i++) {
+						stmt.setString(index++, batch.get(i));
+					}
+					for (int i = probe; i < size; i++) {
+						stmt.setInt(index++, ngrams[i]);
+					}
+					try (ResultSet rs = stmt.executeQuery()) {
+						while (rs.next()) {
+							String tuid = rs.getString(1);
+							counts.put(tuid, counts.get(tuid) + rs.getInt(2));
+						}
+					}
+				}
+			}
+		}
+		skippedPostings.addAndGet(skipped);
+		if (LOGGER.isLoggable(Level.DEBUG)) {
+			LOGGER.log(Level.DEBUG,
+					"Fuzzy search skipped " + skipped + " postings in " + (size - probe) + " common n-grams");
 		}
+		counts.values().removeIf(count -> count < min || count > max);
+		Set<String> candidates = counts.keySet();
 
+		long order = 0l;
 		Iterator<String> it = candidates.iterator();
 		while (it.hasNext()) {
 			String tuid = it.next();
+			int threshold = Math.max(similarity, top.getThreshold());
 			int distance;
 			String puretext = getPureText(srcLang, tuid);
 			if (caseSensitive) {
-				distance = MatchQuality.similarity(searchStr, puretext);
+				distance = MatchQuality.similarity(searchStr, puretext, threshold, scorer);
 			} else {
-				distance = MatchQuality.similarity(lowerSearch, puretext.toLowerCase());
+				distance = MatchQuality.similarity(lowerSearch, puretext.toLowerCase(), threshold, scorer);
 			}
-			if (distance >= similarity) {
+			if (distance >= threshold) {
 				String targetSeg = getSegText(tgtLang, tuid);
 				if (targetSeg != null) {
 					String sourceSeg = getSegText(srcLang, tuid);
@@ -396,13 +484,147 @@ public class SQLEngine implements ITmEngine {
 					Element target = TMUtils.buildTuv(tgtLang, targetSeg);
 					Hashtable<String, String> properties = getTuProperies(tuid);
 					Match match = new Match(source, target, distance, dbName, properties);
-					result.add(match);
+					top.add(match, order++);
 				}
 			}
 		}
+		return top.getMatches();
+	}
+
+	/**
+	 * Returns the SQL conditions on a tuid column that keep the TUs accepted by
+	 * {@code filter}, or an empty string if there are none. The values to set
+	 * are added to {@code params} in order.
+	 */
+	private String filterCondition(TuFilter filter, List<String> params) {
+		if (filter == null) {
+			return "";
+		}
+		StringBuilder builder = new StringBuilder();
+		String select = "tuid IN (SELECT tuid FROM `" + dbName + "`.tuprop WHERE propType=? AND ";
+		String[][] values = { { "project", filter.getProject() }, { "customer", filter.getCustomer() },
+				{ "subject", filter.getSubject() } };
+		for (int i = 0; i < values.length; i++) {
+			if (values[i][1] != null) {
+				builder.append(builder.length() > 0 ? " AND " : "").append(select).append("content=?)");
+				params.add(values[i][0]);
+				params.add(values[i][1]);
+			}
+		}
+		String[][] ranges = { { "creationdate", filter.getCreationFrom(), filter.getCreationTo() },
+				{ "changedate", filter.getChangeFrom(), filter.getChangeTo() } };
+		for (int i = 0; i < ranges.length; i++) {
+			if (ranges[i][1] == null && ranges[i][2] == null) {
+				continue;
+			}
+			builder.append(builder.length() > 0 ? " AND " : "").append(select);
+			params.add(ranges[i][0]);
+			if (ranges[i][1] != null) {
+				builder.append("content>=?");
+				params.add(ranges[i][1]);
+			}
+			if (ranges[i][2] != null) {
+				// dates that start with the end of the range are included
+				builder.append(ranges[i][1] != null ? " AND " : "").append("(content<=? OR content LIKE ?)");
+				params.add(ranges[i][2]);
+				params.add(ranges[i][2] + "%");
+			}
+			builder.append(')');
+		}
+		return builder.toString();
+	}
+
+	private static void setParams(PreparedStatement stmt, int first, List<String> params) throws SQLException {
+		for (int i = 0; i < params.size(); i++) {
+			stmt.setString(first + i, params.get(i));
+		}
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder builder = new StringBuilder("?");
+		for (int i = 1; i < count; i++) {
+			builder.append(",?");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the number of TUs that contain each of the given n-grams.
+	 */
+	private int[] getFrequencies(String lang, int[] ngrams) throws SQLException {
+		checkFrequencies(lang);
+		Map<Integer, Integer> map = new Hashtable<>();
+		try (PreparedStatement stmt = conn.prepareStatement("SELECT ngram, df FROM `" + dbName + "`.freq_"
+				+ lang.replace('-', '_').toLowerCase() + " WHERE ngram IN (" + placeholders(ngrams.length) + ")")) {
+			for (int i = 0; i < ngrams.length; i++) {
+				stmt.setInt(i + 1, ngrams[i]);
+			}
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					map.put(rs.getInt(1), rs.getInt(2));
+				}
+			}
+		}
+		int[] result = new int[ngrams.length];
+		for (int i = 0; i < ngrams.length; i++) {
+			Integer df = map.get(ngrams[i]);
+			result[i] = df != null ? df : 0;
+		}
 		return result;
 	}
 
+	private void checkFrequencies(String lang) throws SQLException {
+		if (checkedFrequencies.contains(lang)) {
+			return;
+		}
+		String suffix = lang.replace('-', '_').toLowerCase();
+		boolean exists = false;
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SHOW TABLES FROM `" + dbName + "` LIKE 'freq_" + suffix + "'")) {
+				while (rs.next()) {
+					exists = true;
+				}
+			}
+			if (!exists) {
+				// n-gram table built before document frequencies were kept
+				createFrequencies(stmt, suffix);
+				stmt.execute("INSERT INTO `" + dbName + "`.freq_" + suffix + " (ngram, df) SELECT ngram, COUNT(*) FROM `"
+						+ dbName + "`.matrix_" + suffix + " GROUP BY ngram");
+				conn.commit();
+			}
+		}
+		checkedFrequencies.add(lang);
+	}
+
+	private void createFrequencies(Statement stmt, String suffix) throws SQLException {
+		stmt.execute("CREATE TABLE `" + dbName + "`.freq_" + suffix
+				+ " ( ngram INTEGER NOT NULL, df INTEGER NOT NULL, PRIMARY KEY (ngram));");
+	}
+
+	/**
+	 * Returns the number of n-gram index entries that fuzzy searches did not
+	 * have to read because their n-grams were common enough to be checked per
+	 * candidate instead.
+	 */
+	public long getSkippedPostings() {
+		return skippedPostings.get();
+	}
+
+	/**
+	 * Selects how fuzzy match similarity is computed, either
+	 * {@link MatchQuality#LCS} or {@link MatchQuality#TILING}.
+	 */
+	public void setScorer(String scorer) {
+		if (!MatchQuality.isScorer(scorer)) {
+			throw new IllegalArgumentException("Unknown scorer: " + scorer);
+		}
+		this.scorer = scorer;
+	}
+
+	public String getScorer() {
+		return scorer;
+	}
+
 	private String getPureText(String lang, String tuid) throws SQLException {
 		if (selectPureText == null) {
 			selectPureText = conn.prepareStatement("SELECT pureText FROM `" + dbName + "`.tuv WHERE tuid=? AND lang=?");
@@ -421,13 +643,26 @@ public class SQLEngine implements ITmEngine {
 	@Override
 	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
 			boolean caseSensitive) throws IOException, SAXException, ParserConfigurationException, SQLException {
+		return concordanceSearch(searchStr, srcLang, limit, isRegexp, caseSensitive, null);
+	}
+
+	@Override
+	public List<Element> concordanceSearch(String searchStr, String srcLang, int limit, boolean isRegexp,
+			boolean caseSensitive, TuFilter filter)
+			throws IOException, SAXException, ParserConfigurationException, SQLException {
+		List<String> params = new Vector<>();
+		String condition = filterCondition(filter, params);
+		if (!condition.isEmpty()) {
+			condition = " AND " + condition;
+		}
 		Set<String> candidates = Collections.synchronizedSortedSet(new TreeSet<>());
 		if (isRegexp) {
-			try (PreparedStatement stmt = conn.prepareStatement(
-					"SELECT tuid, pureText FROM `" + dbName + "`.tuv WHERE lang=? AND pureText REGEXP ? LIMIT ?")) {
+			try (PreparedStatement stmt = conn.prepareStatement("SELECT tuid, pureText FROM `" + dbName
+					+ "`.tuv WHERE lang=? AND pureText REGEXP ?" + condition + " LIMIT ?")) {
 				stmt.setString(1, srcLang);
 				stmt.setString(2, searchStr);
-				stmt.setInt(3, limit);
+				setParams(stmt, 3, params);
+				stmt.setInt(3 + params.size(), limit);
 				try (ResultSet rs = stmt.executeQuery()) {
 					while (rs.next()) {
 						candidates.add(rs.getString(1));
@@ -437,10 +672,11 @@ public class SQLEngine implements ITmEngine {
 		} else {
 			if (!caseSensitive) {
 				try (PreparedStatement stmt = conn.prepareStatement("SELECT tuid, pureText FROM `" + dbName
-						+ "`.tuv WHERE lang=? AND LOWER(pureText) LIKE ? LIMIT ?")) {
+						+ "`.tuv WHERE lang=? AND LOWER(pureText) LIKE ?" + condition + " LIMIT ?")) {
 					stmt.setString(1, srcLang);
 					stmt.setString(2, "%" + searchStr.toLowerCase() + "%");
-					stmt.setInt(3, limit);
+					setParams(stmt, 3, params);
+					stmt.setInt(3 + params.size(), limit);
 					try (ResultSet rs = stmt.executeQuery()) {
 						while (rs.next()) {
 							candidates.add(rs.getString(1));
@@ -448,11 +684,12 @@ public class SQLEngine implements ITmEngine {
 					}
 				}
 			} else {
-				try (PreparedStatement stmt = conn.prepareStatement(
-						"SELECT tuid, pureText FROM `" + dbName + "`.tuv WHERE lang=? AND pureText LIKE ? LIMIT ?")) {
+				try (PreparedStatement stmt = conn.prepareStatement("SELECT tuid, pureText FROM `" + dbName
+						+ "`.tuv WHERE lang=? AND pureText LIKE ?" + condition + " LIMIT ?")) {
 					stmt.setString(1, srcLang);
 					stmt.setString(2, "%" + searchStr + "%");
-					stmt.setInt(3, limit);
+					setParams(stmt, 3, params);
+					stmt.setInt(3 + params.size(), limit);
 					try (ResultSet rs = stmt.executeQuery()) {
 						while (rs.next()) {
 							candidates.add(rs.getString(1));
@@ -538,7 +775,7 @@ public class SQLEngine implements ITmEngine {
 				segText = segText.substring(0, segText.length() - "</seg>".length());
 				storeTuv(lang, tuid, puretext, segText);
 
-				int[] ngrams = NGrams.getNGrams(puretext);
+				int[] ngrams = getStrategy(lang).getNGrams(puretext);
 				storeNgrams(lang, tuid, ngrams, puretext.length());
 
 				tuLangs.add(lang);
@@ -577,6 +814,17 @@ public class SQLEngine implements ITmEngine {
 			stmt.setInt(2, ngrams[i]);
 			stmt.execute();
 		}
+		checkFrequencies(lang);
+		PreparedStatement freq = insertFreq.get(lang);
+		if (freq == null) {
+			freq = conn.prepareStatement("INSERT INTO `" + dbName + "`.freq_" + lang.replace('-', '_').toLowerCase()
+					+ " (ngram, df) VALUES (?,1) ON DUPLICATE KEY UPDATE df=df+1");
+			insertFreq.put(lang, freq);
+		}
+		for (int i = 0; i < ngrams.length; i++) {
+			freq.setInt(1, ngrams[i]);
+			freq.execute();
+		}
 	}
 
 	private void storeTuv(String lang, String tuid, String puretext, String segText) throws SQLException {
@@ -622,6 +870,17 @@ public class SQLEngine implements ITmEngine {
 		removeTuv.setString(1, tuid);
 		removeTuv.setString(2, lang);
 		removeTuv.execute();
+		checkFrequencies(lang);
+		PreparedStatement freq = removeFreq.get(lang);
+		if (freq == null) {
+			String suffix = lang.replace('-', '_').toLowerCase();
+			freq = conn.prepareStatement("UPDATE `" + dbName + "`.freq_" + suffix
+					+ " SET df=df-1 WHERE ngram IN (SELECT ngram FROM `" + dbName + "`.matrix_" + suffix
+					+ " WHERE tuid=?)");
+			removeFreq.put(lang, freq);
+		}
+		freq.setString(1, tuid);
+		freq.execute();
 		PreparedStatement stmt = removeNgram.get(lang);
 		if (stmt == null) {
 			stmt = conn.prepareStatement(
@@ -646,10 +905,79 @@ public class SQLEngine implements ITmEngine {
 				stmt.execute("CREATE TABLE `" + dbName + "`.matrix_" + lang.replace('-', '_').toLowerCase() + " ("
 						+ " tuid VARCHAR(30) NOT NULL, ngram INTEGER NOT NULL, segSize INTEGER,"
 						+ " INDEX `ngrams` (`ngram` ASC) VISIBLE, PRIMARY KEY (tuid,ngram));");
+				createFrequencies(stmt, lang.replace('-', '_').toLowerCase());
 			}
-			conn.commit();
+			checkedFrequencies.add(lang);
 			languages.add(lang);
+			recordStrategy(lang, NGrams.getStrategy(lang));
+			conn.commit();
+		}
+	}
+
+	private INGramStrategy getStrategy(String lang) throws SQLException {
+		INGramStrategy strategy = strategies.get(lang);
+		if (strategy != null) {
+			return strategy;
+		}
+		checkStrategiesTable();
+		String name = null;
+		try (PreparedStatement stmt = conn
+				.prepareStatement("SELECT strategy FROM `" + dbName + "`.ngrams WHERE lang=?")) {
+			stmt.setString(1, lang);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					name = rs.getString(1);
+				}
+			}
+		}
+		INGramStrategy expected = NGrams.getStrategy(lang);
+		if (name == null) {
+			if (languages == null) {
+				getAllLanguages();
+			}
+			if (!languages.contains(lang)) {
+				// no index yet, storeLanguage() will record it
+				return expected;
+			}
+			// built before strategies were recorded
+			strategy = NGrams.getDefaultStrategy();
+			recordStrategy(lang, strategy);
+			conn.commit();
+		} else {
+			strategy = NGrams.getStrategyByName(name);
+			if (strategy == null) {
+				throw new SQLException("Index for " + lang + " was built with unknown n-gram strategy " + name);
+			}
+		}
+		if (!strategy.getName().equals(expected.getName())) {
+			LOGGER.log(Level.WARNING, "Index for " + lang + " was built with " + strategy.getName()
+					+ " n-grams instead of " + expected.getName() + "; rebuild the memory to use "
+					+ expected.getName());
+		}
+		strategies.put(lang, strategy);
+		return strategy;
+	}
+
+	private void checkStrategiesTable() throws SQLException {
+		if (!strategiesChecked) {
+			try (Statement stmt = conn.createStatement()) {
+				// databases created by older versions do not have this table
+				stmt.execute("CREATE TABLE IF NOT EXISTS `" + dbName + "`.ngrams ( lang VARCHAR(15) NOT NULL,"
+						+ " strategy VARCHAR(30) NOT NULL, PRIMARY KEY (lang));");
+			}
+			strategiesChecked = true;
+		}
+	}
+
+	private void recordStrategy(String lang, INGramStrategy strategy) throws SQLException {
+		checkStrategiesTable();
+		try (PreparedStatement stmt = conn
+				.prepareStatement("INSERT INTO `" + dbName + "`.ngrams (lang, strategy) VALUES (?,?)")) {
+			stmt.setString(1, lang);
+			stmt.setString(2, strategy.getName());
+			stmt.execute();
 		}
+		strategies.put(lang, strategy);
 	}
 
 	@Override
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the pure text and the segment of a TUV together, with a preset
+ * dictionary trained on segments of the same language. Segments are short, so
+ * without a dictionary deflate has little to work with; the dictionary
+ * supplies the words and markup that most segments share, and the segment
+ * repeats most of the pure text it follows.
+ */
+class SegmentCompressor {
+
+	static final int DICTIONARY_SIZE = 16 * 1024;
+
+	// markup, pairs of CJK characters, as these languages do not separate words,
+	// or a word with the white space that follows it
+	private static final String CJK = "\\p{IsHan}\\p{IsHiragana}\\p{IsKatakana}\\p{IsHangul}";
+	private static final Pattern TOKENS = Pattern.compile("<[^>]*>|[" + CJK + "]{1,2}|[^\\s<" + CJK + "]+\\s*");
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private byte[] dictionary;
+
+	SegmentCompressor(byte[] dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Builds a dictionary from sample segments, with the tokens that save most
+	 * bytes last, where deflate reaches them with the shortest distances.
+	 */
+	static byte[] train(List<String> samples) {
+		Map<String, Integer> counts = new HashMap<>();
+		Iterator<String> it = samples.iterator();
+		while (it.hasNext()) {
+			Matcher matcher = TOKENS.matcher(it.next());
+			while (matcher.find()) {
+				counts.merge(matcher.group(), 1, Integer::sum);
+			}
+		}
+		List<Entry<String, Integer>> tokens = new ArrayList<>();
+		Iterator<Entry<String, Integer>> et = counts.entrySet().iterator();
+		while (et.hasNext()) {
+			Entry<String, Integer> entry = et.next();
+			// deflate does not copy matches shorter than 3 bytes
+			if (entry.getValue() > 1 && entry.getKey().getBytes(StandardCharsets.UTF_8).length > 2) {
+				tokens.add(entry);
+			}
+		}
+		tokens.sort((a, b) -> Long.compare(saving(b), saving(a)));
+		List<byte[]> selected = new ArrayList<>();
+		int size = 0;
+		for (int i = 0; i < tokens.size(); i++) {
+			byte[] bytes = tokens.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+			if (size + bytes.length > DICTIONARY_SIZE) {
+				break;
+			}
+			selected.add(bytes);
+			size += bytes.length;
+		}
+		ByteBuffer result = ByteBuffer.allocate(size);
+		for (int i = selected.size() - 1; i >= 0; i--) {
+			result.put(selected.get(i));
+		}
+		return result.array();
+	}
+
+	private static long saving(Entry<String, Integer> token) {
+		return (long) (token.getValue() - 1) * token.getKey().length();
+	}
+
+	byte[] compress(String puretext, String seg) {
+		byte[] pure = puretext.getBytes(StandardCharsets.UTF_8);
+		byte[] segment = seg.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer input = ByteBuffer.allocate(4 + pure.length + segment.length);
+		input.putInt(pure.length);
+		input.put(pure);
+		input.put(segment);
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(input.array());
+		deflater.finish();
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.capacity() / 2 + 16);
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			output.write(buffer, 0, count);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Returns the pure text and the segment compressed with
+	 * {@link #compress(String, String)}.
+	 */
+	String[] decompress(byte[] data) throws IOException {
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setDictionary(dictionary);
+		// raw deflate needs a byte after the data to detect its end
+		byte[] input = new byte[data.length + 1];
+		System.arraycopy(data, 0, input, 0, data.length);
+		inflater.setInput(input);
+		byte[] output = new byte[Math.max(64, data.length * 4)];
+		int size = 0;
+		try {
+			while (!inflater.finished()) {
+				if (size == output.length) {
+					byte[] larger = new byte[output.length * 2];
+					System.arraycopy(output, 0, larger, 0, size);
+					output = larger;
+				}
+				int count = inflater.inflate(output, size, output.length - size);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Compressed segment is truncated.");
+				}
+				size += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(output, 0, size);
+		int pureLength = buffer.getInt();
+		String puretext = new String(output, 4, pureLength, StandardCharsets.UTF_8);
+		String seg = new String(output, 4 + pureLength, size - 4 - pureLength, StandardCharsets.UTF_8);
+		return new String[] { puretext, seg };
+	}
+}
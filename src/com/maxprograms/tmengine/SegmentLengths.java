@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.util.Arrays;
+
+/**
+ * Lengths of the indexed segments of one language, in an array indexed by
+ * docId. Lengths are those returned by {@link MatchQuality#length(String)},
+ * saturated at {@link #MAX_LENGTH}. A value of 0 means unknown, so segments
+ * indexed before lengths were recorded are never filtered.
+ */
+class SegmentLengths {
+
+	static final int MAX_LENGTH = Character.MAX_VALUE;
+
+	private volatile char[] values = new char[1024];
+
+	int get(int id) {
+		char[] array = values;
+		return id < array.length ? array[id] : 0;
+	}
+
+	synchronized void set(int id, int length) {
+		if (id >= values.length) {
+			if (length == 0) {
+				return;
+			}
+			values = Arrays.copyOf(values, Math.max(id + 1, values.length * 2));
+		}
+		values[id] = (char) Math.min(length, MAX_LENGTH);
+	}
+
+	/**
+	 * Returns the lengths of all docIds up to the highest one with a known
+	 * length.
+	 */
+	synchronized char[] toArray() {
+		int size = values.length;
+		while (size > 0 && values[size - 1] == 0) {
+			size--;
+		}
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Checks if a segment may have a length between {@code minLength} and
+	 * {@code maxLength}.
+	 */
+	boolean accept(int id, int minLength, int maxLength) {
+		int length = get(id);
+		return length == 0 || (length >= minLength && (length <= maxLength || length == MAX_LENGTH));
+	}
+
+	/**
+	 * Removes from a list of docIds those with a length outside the window,
+	 * returning the list itself if none is removed.
+	 */
+	int[] filter(int[] ids, int minLength, int maxLength) {
+		int size = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (accept(ids[i], minLength, maxLength)) {
+				ids[size++] = ids[i];
+			}
+		}
+		return size == ids.length ? ids : Arrays.copyOf(ids, size);
+	}
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts long keys, each with an optional payload, that may not fit in memory.
+ * Keys are buffered until {@link #spill()} writes them to a run file sorted
+ * in descending order, the order expected by the MapDB data pump; a
+ * {@link Cursor} merges all runs. Equal keys are all returned.
+ */
+class SortedRuns {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private File folder;
+	private String prefix;
+	private boolean payloads;
+	private long maxMemory;
+	private long[] keys;
+	private byte[][] data;
+	private int size;
+	private long memory;
+	private List<File> runs;
+	private List<Integer> counts;
+
+	/**
+	 * @param folder    where run files are written
+	 * @param prefix    start of the run file names
+	 * @param payloads  whether keys have payloads
+	 * @param maxMemory bytes of buffered keys written to a run by
+	 *                  {@link #add(long, byte[])}; with 0, keys are only
+	 *                  written by {@link #spill()}
+	 */
+	SortedRuns(File folder, String prefix, boolean payloads, long maxMemory) {
+		this.folder = folder;
+		this.prefix = prefix;
+		this.payloads = payloads;
+		this.maxMemory = maxMemory;
+		keys = new long[1024];
+		data = payloads ? new byte[keys.length][] : null;
+		runs = new ArrayList<>();
+		counts = new ArrayList<>();
+	}
+
+	void add(long key) throws IOException {
+		add(key, null);
+	}
+
+	void add(long key, byte[] payload) throws IOException {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			if (payloads) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+		}
+		keys[size] = key;
+		memory += Long.BYTES;
+		if (payloads) {
+			data[size] = payload;
+			memory += payload.length + 16;
+		}
+		size++;
+		if (maxMemory > 0 && memory >= maxMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by buffered keys.
+	 */
+	long getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Writes the buffered keys to a new run file and empties the buffer.
+	 */
+	void spill() throws IOException {
+		if (size == 0) {
+			return;
+		}
+		sort();
+		File run = File.createTempFile(prefix, ".run", folder);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+			for (int i = size - 1; i >= 0; i--) {
+				out.writeLong(keys[i]);
+				if (payloads) {
+					out.writeInt(data[i].length);
+					out.write(data[i]);
+				}
+			}
+		}
+		runs.add(run);
+		counts.add(size);
+		clear();
+	}
+
+	private void clear() {
+		size = 0;
+		memory = 0;
+		keys = new long[1024];
+		data = payloads ? new byte[keys.length][] : null;
+	}
+
+	private void sort() {
+		if (!payloads) {
+			Arrays.sort(keys, 0, size);
+			return;
+		}
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+		long[] sortedKeys = new long[size];
+		byte[][] sortedData = new byte[size][];
+		for (int i = 0; i < size; i++) {
+			sortedKeys[i] = keys[order[i]];
+			sortedData[i] = data[order[i]];
+		}
+		keys = sortedKeys;
+		data = sortedData;
+	}
+
+	/**
+	 * Returns all keys added, in descending order. Keys still in memory are
+	 * written to a run first, unless there are no runs yet.
+	 */
+	Cursor cursor() throws IOException {
+		if (runs.isEmpty()) {
+			sort();
+			return new BufferCursor(keys, data, size);
+		}
+		spill();
+		MergeCursor merge = new MergeCursor();
+		for (int i = 0; i < runs.size(); i++) {
+			RunCursor run = new RunCursor(runs.get(i), counts.get(i), payloads);
+			if (run.next()) {
+				merge.queue.add(run);
+			} else {
+				run.close();
+			}
+		}
+		return merge;
+	}
+
+	/**
+	 * Deletes all run files and buffered keys.
+	 */
+	void delete() throws IOException {
+		clear();
+		for (int i = 0; i < runs.size(); i++) {
+			Files.deleteIfExists(runs.get(i).toPath());
+		}
+		runs.clear();
+		counts.clear();
+	}
+
+	/**
+	 * Returns the keys of a cursor once each, for the MapDB data pump; errors
+	 * reading the runs are thrown as {@link UncheckedIOException}.
+	 */
+	static PrimitiveIterator.OfLong distinctKeys(Cursor cursor) {
+		return new PrimitiveIterator.OfLong() {
+
+			private boolean read;
+			private boolean more;
+			private boolean started;
+			private long last;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (!read) {
+						more = cursor.next();
+						read = !more || !started || cursor.getKey() != last;
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return more;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				read = false;
+				started = true;
+				last = cursor.getKey();
+				return last;
+			}
+		};
+	}
+
+	/**
+	 * Iterates over sorted keys. {@link #next()} must be called before reading
+	 * the first key.
+	 */
+	interface Cursor {
+
+		boolean next() throws IOException;
+
+		long getKey();
+
+		byte[] getPayload();
+
+		void close() throws IOException;
+	}
+
+	private static class BufferCursor implements Cursor {
+
+		private long[] keys;
+		private byte[][] data;
+		private int position;
+
+		BufferCursor(long[] keys, byte[][] data, int size) {
+			this.keys = keys;
+			this.data = data;
+			position = size;
+		}
+
+		@Override
+		public boolean next() {
+			return --position >= 0;
+		}
+
+		@Override
+		public long getKey() {
+			return keys[position];
+		}
+
+		@Override
+		public byte[] getPayload() {
+			return data != null ? data[position] : null;
+		}
+
+		@Override
+		public void close() {
+			// nothing to close
+		}
+	}
+
+	private static class RunCursor implements Cursor {
+
+		private DataInputStream input;
+		private int remaining;
+		private boolean payloads;
+		private long key;
+		private byte[] payload;
+
+		RunCursor(File run, int count, boolean payloads) throws IOException {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+			remaining = count;
+			this.payloads = payloads;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			key = input.readLong();
+			if (payloads) {
+				payload = new byte[input.readInt()];
+				input.readFully(payload);
+			}
+			return true;
+		}
+
+		@Override
+		public long getKey() {
+			return key;
+		}
+
+		@Override
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	private static class MergeCursor implements Cursor {
+
+		PriorityQueue<RunCursor> queue = new PriorityQueue<>((a, b) -> Long.compare(b.getKey(), a.getKey()));
+		private long key;
+		private byte[] payload;
+
+		@Override
+		public boolean next() throws IOException {
+			RunCursor run = queue.poll();
+			if (run == null) {
+				return false;
+			}
+			key = run.getKey();
+			payload = run.getPayload();
+			if (run.next()) {
+				queue.add(run);
+			} else {
+				run.close();
+			}
+			return true;
+		}
+
+		@Override
+		public long getKey() {
+			return key;
+		}
+
+		@Override
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		@Override
+		public void close() throws IOException {
+			while (!queue.isEmpty()) {
+				queue.poll().close();
+			}
+		}
+	}
+}
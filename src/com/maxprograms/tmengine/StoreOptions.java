@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.mapdb.DBMaker;
+
+/**
+ * How the MapDB files of a memory are opened, read from the settings of its
+ * entry in the list of memories: "mmap" maps the files in memory,
+ * "storeCache" selects the MapDB instance cache ("hash", the default, "lru",
+ * "hardRef", "weakRef", "softRef" or "none") and "storeCacheSize" its number of
+ * entries, "asyncWrite" writes changes in a background thread and
+ * "syncCommits" set to false does not wait for commits, including those of the
+ * compressed fuzzy index log, to reach the disk.
+ */
+class StoreOptions {
+
+	static final StoreOptions DEFAULT = new StoreOptions();
+
+	private static final String[] CACHES = { "hash", "lru", "hardRef", "weakRef", "softRef", "none" };
+
+	private boolean mmap;
+	private String cache = "hash";
+	private int cacheSize;
+	private boolean asyncWrite;
+	private boolean syncCommits = true;
+	private boolean log = true;
+
+	private StoreOptions() {
+		// default MapDB settings
+	}
+
+	StoreOptions(JSONObject settings) throws IOException {
+		mmap = settings.optBoolean("mmap", false);
+		cache = settings.optString("storeCache", "hash");
+		if (!Arrays.asList(CACHES).contains(cache)) {
+			MessageFormat mf = new MessageFormat("Unknown store cache type {0}.");
+			throw new IOException(mf.format(new String[] { cache }));
+		}
+		cacheSize = settings.optInt("storeCacheSize", 0);
+		asyncWrite = settings.optBoolean("asyncWrite", false);
+		syncCommits = settings.optBoolean("syncCommits", true);
+	}
+
+	/**
+	 * Returns the same options without write-ahead log. Changes are written to
+	 * the files directly, and a crash before they are committed and closed can
+	 * damage them.
+	 */
+	StoreOptions withoutLog() {
+		StoreOptions options = new StoreOptions();
+		options.mmap = mmap;
+		options.cache = cache;
+		options.cacheSize = cacheSize;
+		options.asyncWrite = asyncWrite;
+		options.syncCommits = syncCommits;
+		options.log = false;
+		return options;
+	}
+
+	boolean syncsCommits() {
+		return syncCommits;
+	}
+
+	boolean hasLog() {
+		return log;
+	}
+
+	DBMaker<?> maker(File file) {
+		DBMaker<?> maker = DBMaker.newFileDB(file).closeOnJvmShutdown();
+		if (mmap) {
+			maker.mmapFileEnableIfSupported();
+		}
+		// the hash table cache is used by MapDB if none is selected
+		if ("lru".equals(cache)) {
+			maker.cacheLRUEnable();
+		} else if ("hardRef".equals(cache)) {
+			maker.cacheHardRefEnable();
+		} else if ("weakRef".equals(cache)) {
+			maker.cacheWeakRefEnable();
+		} else if ("softRef".equals(cache)) {
+			maker.cacheSoftRefEnable();
+		} else if ("none".equals(cache)) {
+			maker.cacheDisable();
+		}
+		if (cacheSize > 0) {
+			maker.cacheSize(cacheSize);
+		}
+		if (asyncWrite) {
+			maker.asyncWriteEnable();
+		}
+		if (!syncCommits) {
+			maker.commitFileSyncDisable();
+		}
+		if (!log) {
+			maker.transactionDisable();
+		}
+		return maker;
+	}
+}
@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import com.maxprograms.tmutils.TMUtils;
+import com.maxprograms.xml.Attribute;
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+import com.maxprograms.xml.XMLUtils;
+
+/**
+ * Writes the TUs of a memory as TMX text built from the stored properties and
+ * segment markup, without parsing segments into elements. The text is the
+ * same that indenting and serializing the TU elements would produce; only
+ * segments whose whitespace would be changed by indenting are parsed. TUs can
+ * be written by several threads in chunks of consecutive docIds that are
+ * written to the output in order.
+ */
+class TmxExporter {
+
+	static final int CHUNK_SIZE = 1024;
+
+	private static final String TU_INDENT = "\n      ";
+
+	private TuDatabase tuDb;
+	private ITuvDatabase tuvDb;
+	private Set<String> tuAttributes;
+
+	TmxExporter(TuDatabase tuDb, ITuvDatabase tuvDb, Set<String> tuAttributes) {
+		this.tuDb = tuDb;
+		this.tuvDb = tuvDb;
+		this.tuAttributes = tuAttributes;
+	}
+
+	/**
+	 * Writes the TUs with the given docIds. With more than one thread, chunks of
+	 * {@link #CHUNK_SIZE} TUs are built in parallel, with at most two chunks per
+	 * thread waiting to be written.
+	 */
+	void export(Writer output, Iterator<Integer> ids, Set<String> langs, int threads)
+			throws IOException, SAXException, ParserConfigurationException {
+		if (threads < 2) {
+			StringBuilder builder = new StringBuilder();
+			while (ids.hasNext()) {
+				appendTu(builder, ids.next(), langs);
+				if (builder.length() >= 64 * 1024) {
+					output.write(builder.toString());
+					builder.setLength(0);
+				}
+			}
+			output.write(builder.toString());
+			return;
+		}
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "TMX export worker " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Deque<Future<String>> pending = new ArrayDeque<>();
+		try {
+			while (ids.hasNext()) {
+				int[] chunk = new int[CHUNK_SIZE];
+				int size = 0;
+				while (size < CHUNK_SIZE && ids.hasNext()) {
+					chunk[size++] = ids.next();
+				}
+				int chunkSize = size;
+				pending.add(workers.submit(() -> {
+					StringBuilder builder = new StringBuilder();
+					for (int i = 0; i < chunkSize; i++) {
+						appendTu(builder, chunk[i], langs);
+					}
+					return builder.toString();
+				}));
+				if (pending.size() >= threads * 2) {
+					output.write(get(pending.removeFirst()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				output.write(get(pending.removeFirst()));
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private static String get(Future<String> future) throws IOException, SAXException, ParserConfigurationException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e.getMessage());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof SAXException) {
+				throw (SAXException) cause;
+			}
+			if (cause instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Appends a TU, indented as the second level of the TMX body and followed
+	 * by a line break.
+	 */
+	void appendTu(StringBuilder builder, int id, Set<String> langs)
+			throws IOException, SAXException, ParserConfigurationException {
+		Map<String, String> properties = tuDb.getTu(id);
+		// attributes in the order of the Hashtable that holds them in an Element
+		Map<String, String> attributes = new Hashtable<>();
+		List<Entry<String, String>> props = new ArrayList<>();
+		Iterator<Entry<String, String>> it = properties.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, String> entry = it.next();
+			if (tuAttributes.contains(entry.getKey())) {
+				attributes.put(entry.getKey(), entry.getValue());
+			} else {
+				props.add(entry);
+			}
+		}
+		builder.append("    <tu");
+		Iterator<String> keys = attributes.keySet().iterator();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			builder.append(' ').append(new Attribute(key, attributes.get(key)).toString());
+		}
+		int start = builder.length();
+		builder.append('>');
+		boolean empty = true;
+		for (int i = 0; i < props.size(); i++) {
+			Entry<String, String> prop = props.get(i);
+			builder.append(TU_INDENT).append("<prop ").append(new Attribute("type", prop.getKey()).toString());
+			if (hasText(prop.getValue())) {
+				builder.append('>').append(XMLUtils.cleanText(prop.getValue())).append("</prop>");
+			} else {
+				// Indenter removes blank text
+				builder.append("/>");
+			}
+			empty = false;
+		}
+		Iterator<String> lt = tuDb.getLanguages().iterator();
+		while (lt.hasNext()) {
+			String lang = lt.next();
+			if (langs != null && !langs.contains(lang)) {
+				continue;
+			}
+			String seg = tuvDb.getSegText(lang, id);
+			if (seg == null) {
+				continue;
+			}
+			builder.append(TU_INDENT);
+			if (isWrittenAsStored(seg)) {
+				builder.append("<tuv ").append(new Attribute("xml:lang", lang).toString()).append(">\n        <seg>")
+						.append(seg).append("</seg>\n      </tuv>");
+			} else {
+				Element tuv = TMUtils.buildTuv(lang, seg);
+				indent(tuv, 4, 2);
+				builder.append(tuv.toString());
+			}
+			empty = false;
+		}
+		if (empty) {
+			builder.setLength(start);
+			builder.append("/>\n");
+		} else {
+			builder.append("\n    </tu>\n");
+		}
+	}
+
+	/**
+	 * Indents an element like {@code Indenter.indent(element, level, spaces)},
+	 * which keeps the current level in static fields and cannot be used by
+	 * several threads at once.
+	 */
+	private static void indent(Element element, int level, int spaces) {
+		if ("preserve".equals(element.getAttributeValue("xml:space"))) {
+			return;
+		}
+		List<XMLNode> content = element.getContent();
+		if (!hasText(content)) {
+			String inner = "\n" + " ".repeat(level * spaces);
+			List<XMLNode> indented = new Vector<>();
+			Iterator<XMLNode> it = content.iterator();
+			while (it.hasNext()) {
+				XMLNode node = it.next();
+				if (node.getNodeType() != XMLNode.TEXT_NODE) {
+					indented.add(new TextNode(inner));
+					indented.add(node);
+				}
+			}
+			if (!indented.isEmpty()) {
+				indented.add(new TextNode("\n" + " ".repeat((level - 1) * spaces)));
+			}
+			element.setContent(indented);
+		}
+		Iterator<Element> children = element.getChildren().iterator();
+		while (children.hasNext()) {
+			indent(children.next(), level + 1, spaces);
+		}
+	}
+
+	private static boolean hasText(List<XMLNode> content) {
+		Iterator<XMLNode> it = content.iterator();
+		while (it.hasNext()) {
+			XMLNode node = it.next();
+			if (node.getNodeType() == XMLNode.TEXT_NODE) {
+				String text = ((TextNode) node).getText();
+				if (text != null && hasText(text)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the stored markup of a segment can be written as is. It
+	 * is the serialized content of a parsed seg element, which parsing and
+	 * serializing again leaves unchanged except for the order of attributes.
+	 * What differs is the whitespace that Indenter adds to or removes from an
+	 * element without text of its own, such as a seg that only holds inline
+	 * elements or blanks or an inline element that only holds other ones.
+	 * Comments, CDATA sections, processing instructions, xml:space, character
+	 * references and carriage returns are rare and also left to the parser.
+	 */
+	private static boolean isWrittenAsStored(String seg) {
+		// text[depth] tells if the open element at that depth has text
+		boolean[] text = new boolean[8];
+		int depth = 0;
+		int length = seg.length();
+		int i = 0;
+		while (i < length) {
+			char c = seg.charAt(i);
+			if (c == '<') {
+				if (i + 1 == length || seg.charAt(i + 1) == '!' || seg.charAt(i + 1) == '?') {
+					return false;
+				}
+				int end = i + 1;
+				char quote = 0;
+				while (end < length && (quote != 0 || seg.charAt(end) != '>')) {
+					char d = seg.charAt(end);
+					if (quote == 0 && (d == '"' || d == '\'')) {
+						quote = d;
+					} else if (d == quote) {
+						quote = 0;
+					}
+					end++;
+				}
+				if (end == length) {
+					return false;
+				}
+				if (seg.charAt(i + 1) == '/') {
+					if (depth == 0 || !text[depth]) {
+						return false;
+					}
+					depth--;
+				} else if (seg.substring(i, end).contains("xml:space")) {
+					return false;
+				} else if (seg.charAt(end - 1) != '/') {
+					depth++;
+					if (depth == text.length) {
+						text = Arrays.copyOf(text, depth * 2);
+					}
+					text[depth] = false;
+				}
+				i = end + 1;
+			} else if (c == '&') {
+				if (!seg.startsWith("&amp;", i) && !seg.startsWith("&lt;", i) && !seg.startsWith("&gt;", i)) {
+					return false;
+				}
+				text[depth] = true;
+				i = seg.indexOf(';', i) + 1;
+			} else if (c == '>' || c == '\r') {
+				return false;
+			} else {
+				if (!Character.isSpaceChar(c) && c != '\n') {
+					text[depth] = true;
+				}
+				i++;
+			}
+		}
+		return depth == 0 && text[0];
+	}
+
+	/**
+	 * Same test used by Indenter to leave the content of an element untouched.
+	 */
+	private static boolean hasText(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (!Character.isSpaceChar(c) && c != '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Vector;
+
+/**
+ * Collects the matches of one search. When a limit is set, only the best
+ * matches according to {@link Match#compareTo(Match)} are kept, in a bounded
+ * heap. Ties are broken with the order value given to each match, so the
+ * result does not depend on the order in which threads add them.
+ */
+class TopMatches {
+
+	private static class Entry {
+		Match match;
+		long order;
+
+		Entry(Match match, long order) {
+			this.match = match;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Entry> BEST_FIRST = (a, b) -> {
+		int result = a.match.compareTo(b.match);
+		return result != 0 ? result : Long.compare(a.order, b.order);
+	};
+
+	private int limit;
+	private List<Entry> all;
+	private PriorityQueue<Entry> heap;
+
+	/**
+	 * @param limit maximum number of matches to keep, 0 or less to keep all
+	 */
+	TopMatches(int limit) {
+		this.limit = limit;
+		if (limit > 0) {
+			// worst match at the head
+			heap = new PriorityQueue<>(limit + 1, BEST_FIRST.reversed());
+		} else {
+			all = new ArrayList<>();
+		}
+	}
+
+	synchronized void add(Match match, long order) {
+		Entry entry = new Entry(match, order);
+		if (heap == null) {
+			all.add(entry);
+			return;
+		}
+		heap.add(entry);
+		if (heap.size() > limit) {
+			heap.poll();
+		}
+	}
+
+	/**
+	 * Returns the lowest similarity that a new match needs to be kept, 0 while
+	 * the limit has not been reached.
+	 */
+	synchronized int getThreshold() {
+		if (heap == null || heap.size() < limit) {
+			return 0;
+		}
+		return heap.peek().match.getSimilarity();
+	}
+
+	/**
+	 * Returns the matches kept, best first when a limit is set and in order of
+	 * their order values otherwise.
+	 */
+	synchronized List<Match> getMatches() {
+		List<Entry> entries = heap != null ? new ArrayList<>(heap) : all;
+		if (heap != null) {
+			Collections.sort(entries, BEST_FIRST);
+		} else {
+			Collections.sort(entries, (a, b) -> Long.compare(a.order, b.order));
+		}
+		List<Match> result = new Vector<>();
+		for (int i = 0; i < entries.size(); i++) {
+			result.add(entries.get(i).match);
+		}
+		return result;
+	}
+}
@@ -13,26 +13,77 @@ package com.maxprograms.tmengine;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
 import java.util.Set;
 
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Fun;
 import org.mapdb.HTreeMap;
 
 public class TuDatabase {
 
+	// map of TUs keyed by tuid.hashCode() in memories created before docIds
+	private static final String LEGACY_MAP = "tuvmap";
+
+	// properties with a secondary index of (value, docId) pairs
+	private static final String[] INDEXED = { "project", "customer", "subject", "creationdate", "changedate" };
+
 	private DB mapdb;
-	private HTreeMap<Integer, Map<String, String>> tumap;
+	private boolean readOnly;
+	// values are encoded by the PropertyDictionary, or Maps in older memories
+	private BTreeMap<Integer, Object> tumap;
+	private PropertyDictionary dictionary;
+	private Atomic.Boolean encoded;
+	private Map<String, NavigableSet<Fun.Tuple2<String, Integer>>> indexes;
+	private Atomic.Boolean indexed;
+	private BTreeMap<String, Integer> docIds;
+	private Atomic.Integer lastId;
+	private Atomic.Boolean migrating;
 	private Set<String> projects;
 	private Set<String> subjects;
 	private Set<String> customers;
 	private Set<String> languages;
 
 	public TuDatabase(File folder) throws IOException {
+		this(folder, false);
+	}
+
+	/**
+	 * @param readOnly open the file for reading only, so that several processes
+	 *                 can share it. Changes are rejected by MapDB.
+	 */
+	public TuDatabase(File folder, boolean readOnly) throws IOException {
+		this(folder, readOnly, StoreOptions.DEFAULT);
+	}
+
+	TuDatabase(File folder, boolean readOnly, StoreOptions options) throws IOException {
+		this.readOnly = readOnly;
 		try {
-			mapdb = DBMaker.newFileDB(new File(folder, "tudata")).closeOnJvmShutdown().make();
-			tumap = mapdb.getHashMap("tuvmap");
+			DBMaker<?> maker = options.maker(new File(folder, "tudata"));
+			if (readOnly) {
+				maker.readOnly();
+			}
+			mapdb = maker.make();
+			tumap = mapdb.getTreeMap("tus");
+			dictionary = new PropertyDictionary(mapdb.getTreeMap("propnames"), mapdb.getTreeMap("propvalues"));
+			encoded = mapdb.getAtomicBoolean("encoded");
+			indexes = new HashMap<>();
+			for (int i = 0; i < INDEXED.length; i++) {
+				indexes.put(INDEXED[i], mapdb.getTreeSet("index." + INDEXED[i]));
+			}
+			indexed = mapdb.getAtomicBoolean("indexed");
+			docIds = mapdb.getTreeMap("docids");
+			lastId = mapdb.getAtomicInteger("lastid");
+			migrating = mapdb.getAtomicBoolean("migrating");
 			projects = mapdb.getHashSet("projects");
 			subjects = mapdb.getHashSet("subjects");
 			customers = mapdb.getHashSet("customers");
@@ -40,23 +91,199 @@ public class TuDatabase {
 		} catch (Error ioe) {
 			throw new IOException(ioe.getMessage());
 		}
+		if (!readOnly && !encoded.get()) {
+			encode();
+		}
+		if (!readOnly && !indexed.get()) {
+			buildIndexes();
+		}
 	}
 
-	public void commit() {
+	/**
+	 * Replaces the Maps of TU properties stored by older versions with their
+	 * encoded form. Can be restarted if interrupted.
+	 */
+	private void encode() {
+		int count = 0;
+		Iterator<Entry<Integer, Object>> it = tumap.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<Integer, Object> entry = it.next();
+			if (entry.getValue() instanceof Map) {
+				@SuppressWarnings("unchecked")
+				Map<String, String> tu = (Map<String, String>) entry.getValue();
+				tumap.put(entry.getKey(), dictionary.encode(tu));
+				if (++count % 10000 == 0) {
+					mapdb.commit();
+				}
+			}
+		}
+		encoded.set(true);
 		mapdb.commit();
+		if (count > 0) {
+			// release the space of the old records
+			mapdb.compact();
+		}
 	}
 
-	public void close() {
+	/**
+	 * Fills the secondary indexes of memories created without them. Can be
+	 * restarted if interrupted.
+	 */
+	private void buildIndexes() {
+		clearIndexes();
+		int count = 0;
+		Iterator<Integer> it = tumap.keySet().iterator();
+		while (it.hasNext()) {
+			int id = it.next();
+			index(id, null, getTu(id));
+			if (++count % 10000 == 0) {
+				mapdb.commit();
+			}
+		}
+		indexed.set(true);
 		mapdb.commit();
+	}
+
+	private void clearIndexes() {
+		Iterator<NavigableSet<Fun.Tuple2<String, Integer>>> it = indexes.values().iterator();
+		while (it.hasNext()) {
+			it.next().clear();
+		}
+	}
+
+	/**
+	 * Replaces the index entries of a TU with {@code oldTu} properties by those
+	 * of its {@code newTu} properties. Either may be null.
+	 */
+	private void index(int id, Map<String, String> oldTu, Map<String, String> newTu) {
+		for (int i = 0; i < INDEXED.length; i++) {
+			String oldValue = oldTu != null ? oldTu.get(INDEXED[i]) : null;
+			String newValue = newTu != null ? newTu.get(INDEXED[i]) : null;
+			if (oldValue != null ? oldValue.equals(newValue) : newValue == null) {
+				continue;
+			}
+			NavigableSet<Fun.Tuple2<String, Integer>> index = indexes.get(INDEXED[i]);
+			if (oldValue != null) {
+				index.remove(Fun.t2(oldValue, id));
+			}
+			if (newValue != null) {
+				index.add(Fun.t2(newValue, id));
+			}
+		}
+	}
+
+	public void commit() {
+		if (!readOnly) {
+			mapdb.commit();
+		}
+	}
+
+	public void close() {
+		commit();
 		mapdb.close();
 	}
 
-	public void store(String tuid, Map<String, String> tu) {
-		if (tumap.containsKey(tuid.hashCode())) {
-			tumap.replace(tuid.hashCode(), tu);
-		} else {
-			tumap.put(tuid.hashCode(), tu);
+	/**
+	 * Checks if the memory was created with TUs keyed by tuid hash codes, or if
+	 * a migration to docIds has not been completed.
+	 */
+	public boolean needsMigration() {
+		return migrating.get() || mapdb.exists(LEGACY_MAP);
+	}
+
+	/**
+	 * Assigns docIds to the TUs stored by tuid hash code. Can be restarted if
+	 * interrupted; {@link #setMigrated()} must be called once the other stores
+	 * have been migrated too.
+	 */
+	public void migrate() {
+		if (!mapdb.exists(LEGACY_MAP)) {
+			return;
+		}
+		migrating.set(true);
+		tumap.clear();
+		clearIndexes();
+		docIds.clear();
+		lastId.set(0);
+		mapdb.commit();
+		HTreeMap<Integer, Map<String, String>> legacy = mapdb.getHashMap(LEGACY_MAP);
+		// in key order, so that scans by docId return TUs in the same order as before
+		int[] keys = new int[legacy.size()];
+		int size = 0;
+		Iterator<Integer> it = legacy.keySet().iterator();
+		while (it.hasNext() && size < keys.length) {
+			keys[size++] = it.next();
 		}
+		Arrays.sort(keys, 0, size);
+		for (int i = 0; i < size; i++) {
+			Map<String, String> tu = legacy.get(keys[i]);
+			store(getId(tu.get("tuid"), true), tu);
+			if ((i + 1) % 10000 == 0) {
+				mapdb.commit();
+			}
+		}
+		mapdb.delete(LEGACY_MAP);
+		mapdb.commit();
+	}
+
+	public void setMigrated() {
+		migrating.set(false);
+		mapdb.commit();
+	}
+
+	/**
+	 * Returns the docIds of all TUs, indexed by the hash code of their tuids as
+	 * used before docIds. The first array has the sorted hash codes and the
+	 * second one the docIds in the same order.
+	 */
+	public int[][] getLegacyKeys() {
+		long[] pairs = new long[docIds.size()];
+		int size = 0;
+		Iterator<Entry<String, Integer>> it = docIds.entrySet().iterator();
+		while (it.hasNext() && size < pairs.length) {
+			Entry<String, Integer> entry = it.next();
+			pairs[size++] = ((long) entry.getKey().hashCode() << 32) | (entry.getValue() & 0xFFFFFFFFL);
+		}
+		Arrays.sort(pairs, 0, size);
+		int[] hashes = new int[size];
+		int[] ids = new int[size];
+		for (int i = 0; i < size; i++) {
+			hashes[i] = (int) (pairs[i] >> 32);
+			ids[i] = (int) pairs[i];
+		}
+		return new int[][] { hashes, ids };
+	}
+
+	/**
+	 * Returns the docId of a TU, or -1 if the tuid is not known.
+	 */
+	public int getId(String tuid) {
+		Integer id = docIds.get(tuid);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the docId of a TU, assigning the next free one to new tuids.
+	 */
+	public int createId(String tuid) {
+		return getId(tuid, true);
+	}
+
+	private int getId(String tuid, boolean create) {
+		Integer id = docIds.get(tuid);
+		if (id == null && create) {
+			int next = lastId.incrementAndGet();
+			id = docIds.putIfAbsent(tuid, next);
+			if (id == null) {
+				id = next;
+			}
+		}
+		return id != null ? id : -1;
+	}
+
+	public void store(int id, Map<String, String> tu) {
+		Object old = tumap.put(id, dictionary.encode(tu));
+		index(id, old != null ? decode(old) : null, tu);
 	}
 
 	public void storeSubject(String sub) {
@@ -95,13 +322,91 @@ public class TuDatabase {
 		return languages;
 	}
 
-	public Map<String, String> getTu(Integer hashCode) {
-		return tumap.get(hashCode);
+	/**
+	 * Returns the properties of a TU, decoded when first read.
+	 */
+	public Map<String, String> getTu(Integer id) {
+		Object tu = tumap.get(id);
+		return tu != null ? decode(tu) : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, String> decode(Object tu) {
+		if (tu instanceof byte[]) {
+			return new PropertyMap(dictionary, (byte[]) tu);
+		}
+		return (Map<String, String>) tu;
 	}
 
 	public void remove(String tuid) {
-		if (tumap.containsKey(tuid.hashCode())) {
-			tumap.remove(tuid.hashCode());
+		Integer id = docIds.remove(tuid);
+		if (id != null) {
+			Object old = tumap.remove(id);
+			if (old != null) {
+				index(id, decode(old), null);
+			}
+		}
+	}
+
+	/**
+	 * Returns the docIds of the TUs accepted by {@code filter}, read from the
+	 * secondary indexes. Memories opened read-only before their indexes were
+	 * built are scanned instead.
+	 */
+	public BitSet select(TuFilter filter) {
+		if (!indexed.get()) {
+			BitSet result = new BitSet();
+			Iterator<Entry<Integer, Object>> it = tumap.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry<Integer, Object> entry = it.next();
+				if (filter.accept(decode(entry.getValue()))) {
+					result.set(entry.getKey());
+				}
+			}
+			return result;
+		}
+		BitSet result = null;
+		result = select(result, "project", filter.getProject(), filter.getProject(), false);
+		result = select(result, "customer", filter.getCustomer(), filter.getCustomer(), false);
+		result = select(result, "subject", filter.getSubject(), filter.getSubject(), false);
+		result = select(result, "creationdate", filter.getCreationFrom(), filter.getCreationTo(), true);
+		result = select(result, "changedate", filter.getChangeFrom(), filter.getChangeTo(), true);
+		if (result == null) {
+			// nothing to filter on
+			result = new BitSet();
+			Iterator<Integer> it = tumap.keySet().iterator();
+			while (it.hasNext()) {
+				result.set(it.next());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Intersects {@code previous}, null when no criteria were applied yet, with
+	 * the docIds indexed with a value between {@code from} and {@code to}.
+	 */
+	private BitSet select(BitSet previous, String property, String from, String to, boolean dates) {
+		if (from == null && to == null || previous != null && previous.isEmpty()) {
+			return previous;
+		}
+		NavigableSet<Fun.Tuple2<String, Integer>> index = indexes.get(property);
+		Fun.Tuple2<String, Integer> low = Fun.t2(from, (Integer) null);
+		NavigableSet<Fun.Tuple2<String, Integer>> range;
+		if (to == null) {
+			range = index.tailSet(low, true);
+		} else {
+			String high = dates ? TuFilter.upperBound(to) : to;
+			range = index.subSet(low, true, Fun.t2(high, Integer.MAX_VALUE), true);
+		}
+		BitSet result = new BitSet();
+		Iterator<Fun.Tuple2<String, Integer>> it = range.iterator();
+		while (it.hasNext()) {
+			int id = it.next().b;
+			if (previous == null || previous.get(id)) {
+				result.set(id);
+			}
 		}
+		return result;
 	}
 }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.util.Map;
+
+/**
+ * Restricts searches and exports to the TUs of a project, customer or subject,
+ * or to TUs created or changed within a range of dates. Dates use the TMX
+ * format (YYYYMMDDThhmmssZ) and both ends of a range are included; an end can
+ * be shortened, so that "2021" or "20210315" cover the whole year or day.
+ * Criteria that are not set do not restrict the TUs.
+ */
+public class TuFilter {
+
+	private String project;
+	private String customer;
+	private String subject;
+	private String creationFrom;
+	private String creationTo;
+	private String changeFrom;
+	private String changeTo;
+
+	public TuFilter() {
+		// all criteria unset
+	}
+
+	public String getProject() {
+		return project;
+	}
+
+	public void setProject(String project) {
+		this.project = project;
+	}
+
+	public String getCustomer() {
+		return customer;
+	}
+
+	public void setCustomer(String customer) {
+		this.customer = customer;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public void setSubject(String subject) {
+		this.subject = subject;
+	}
+
+	public String getCreationFrom() {
+		return creationFrom;
+	}
+
+	public String getCreationTo() {
+		return creationTo;
+	}
+
+	public void setCreationDates(String from, String to) {
+		creationFrom = from;
+		creationTo = to;
+	}
+
+	public String getChangeFrom() {
+		return changeFrom;
+	}
+
+	public String getChangeTo() {
+		return changeTo;
+	}
+
+	public void setChangeDates(String from, String to) {
+		changeFrom = from;
+		changeTo = to;
+	}
+
+	public boolean isEmpty() {
+		return project == null && customer == null && subject == null && creationFrom == null && creationTo == null
+				&& changeFrom == null && changeTo == null;
+	}
+
+	/**
+	 * Checks the properties of a TU, as stored by the engines, against all
+	 * criteria.
+	 */
+	public boolean accept(Map<String, String> properties) {
+		if (project != null && !project.equals(properties.get("project"))) {
+			return false;
+		}
+		if (customer != null && !customer.equals(properties.get("customer"))) {
+			return false;
+		}
+		if (subject != null && !subject.equals(properties.get("subject"))) {
+			return false;
+		}
+		if ((creationFrom != null || creationTo != null)
+				&& !inRange(properties.get("creationdate"), creationFrom, creationTo)) {
+			return false;
+		}
+		return changeFrom == null && changeTo == null || inRange(properties.get("changedate"), changeFrom, changeTo);
+	}
+
+	private static boolean inRange(String date, String from, String to) {
+		if (date == null) {
+			return false;
+		}
+		return (from == null || date.compareTo(from) >= 0) && (to == null || date.compareTo(upperBound(to)) < 0);
+	}
+
+	/**
+	 * Returns a string that sorts after all dates that start with {@code to}.
+	 */
+	static String upperBound(String to) {
+		return to + Character.MAX_VALUE;
+	}
+}
@@ -13,45 +13,237 @@ package com.maxprograms.tmengine;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NavigableSet;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
 
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import org.mapdb.Fun;
 
-public class TuvDatabase {
+public class TuvDatabase implements ITuvDatabase {
 
-	private Map<String, BTreeMap<Integer, String>> textMaps;
-	private Map<String, BTreeMap<Integer, Set<String>>> hashesMaps;
-	private Map<String, BTreeMap<Integer, String>> segsMaps;
+	private static final String DICTIONARY = "dictionary";
+
+	// characters of segment text used to train the dictionary of a language
+	private static final int SAMPLE_SIZE = 64 * 1024;
+
+	// records are either a Fun.Tuple2 of pure text and segment or the bytes
+	// deflated by the SegmentCompressor of their language
+	private Map<String, BTreeMap<Integer, Object>> recordMaps;
+	private Map<String, NavigableSet<Fun.Tuple2<Integer, Integer>>> hashesMaps;
+	private Map<String, SegmentCompressor> compressors;
+	private Map<String, Sample> samples;
 	private Map<String, DB> databases;
 	private File folder;
+	private boolean compress;
+	private StoreOptions options;
 
 	public TuvDatabase(File folder) {
+		this(folder, false);
+	}
+
+	/**
+	 * @param compress deflate new records with a dictionary trained on the first
+	 *                 segments stored for each language. Records are read the
+	 *                 same way whether they are compressed or not.
+	 */
+	public TuvDatabase(File folder, boolean compress) {
+		this(folder, compress, StoreOptions.DEFAULT);
+	}
+
+	TuvDatabase(File folder, boolean compress, StoreOptions options) {
 		this.folder = folder;
+		this.compress = compress;
+		this.options = options;
 		databases = new ConcurrentHashMap<>();
-		textMaps = new ConcurrentHashMap<>();
+		recordMaps = new ConcurrentHashMap<>();
 		hashesMaps = new ConcurrentHashMap<>();
-		segsMaps = new ConcurrentHashMap<>();
+		compressors = new ConcurrentHashMap<>();
+		samples = new ConcurrentHashMap<>();
 	}
 
-	private void buildIndex(String lang) throws IOException {
+	private synchronized void buildIndex(String lang) throws IOException {
+		if (databases.containsKey(lang)) {
+			// opened by another thread
+			return;
+		}
 		try {
-			DB mapdb = DBMaker.newFileDB(new File(folder, "tuv_" + lang)).closeOnJvmShutdown().make();
+			DB mapdb = options.maker(new File(folder, "tuv_" + lang)).make();
+			// pure text and segment of each docId are kept together in one record
+			BTreeMap<Integer, Object> records = mapdb.getTreeMap("records");
+			if (mapdb.exists(DICTIONARY)) {
+				compressors.put(lang, new SegmentCompressor(mapdb.<byte[]>getAtomicVar(DICTIONARY).get()));
+			}
+			recordMaps.put(lang, records);
+			hashesMaps.put(lang, mapdb.getTreeSet("exact"));
 			databases.put(lang, mapdb);
-			textMaps.put(lang, databases.get(lang).getTreeMap("tuvs"));
-			hashesMaps.put(lang, databases.get(lang).getTreeMap("hashes"));
-			segsMaps.put(lang, databases.get(lang).getTreeMap("segs"));
 		} catch (Error ioe) {
 			throw new IOException(ioe.getMessage());
 		}
 	}
 
+	/**
+	 * Moves the segments of a language stored by tuid hash code, as done before
+	 * docIds, to their docIds. Can be restarted if interrupted.
+	 */
+	public void migrate(String lang, IntUnaryOperator docIds) throws IOException {
+		if (!databases.containsKey(lang)) {
+			buildIndex(lang);
+		}
+		DB mapdb = databases.get(lang);
+		if (!mapdb.exists("tuvs")) {
+			return;
+		}
+		BTreeMap<Integer, Object> records = recordMaps.get(lang);
+		NavigableSet<Fun.Tuple2<Integer, Integer>> matches = hashesMaps.get(lang);
+		records.clear();
+		matches.clear();
+		mapdb.commit();
+		BTreeMap<Integer, String> oldTexts = mapdb.getTreeMap("tuvs");
+		BTreeMap<Integer, String> oldSegs = mapdb.getTreeMap("segs");
+		int count = 0;
+		Iterator<Entry<Integer, String>> it = oldTexts.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<Integer, String> entry = it.next();
+			int id = docIds.applyAsInt(entry.getKey());
+			String seg = oldSegs.get(entry.getKey());
+			if (id != -1 && seg != null) {
+				String puretext = entry.getValue();
+				records.put(id, Fun.t2(puretext, seg));
+				matches.add(Fun.t2(puretext.toLowerCase().hashCode(), id));
+			}
+			if (++count % 10000 == 0) {
+				mapdb.commit();
+			}
+		}
+		mapdb.delete("tuvs");
+		mapdb.delete("segs");
+		mapdb.delete("hashes");
+		mapdb.commit();
+	}
+
+	/**
+	 * Writes the segments of a language that has none, received in descending
+	 * docId order, building the trees bottom-up with the MapDB data pump in a
+	 * file opened without write-ahead log. Pairs of hash and docId for the exact
+	 * match index are sorted in {@code hashes} while the segments are written.
+	 */
+	void load(String lang, Iterator<Fun.Tuple2<Integer, String[]>> segments, SortedRuns hashes)
+			throws IOException {
+		if (databases.containsKey(lang)) {
+			if (!recordMaps.get(lang).isEmpty()) {
+				MessageFormat mf = new MessageFormat("Segments in {0} already stored.");
+				throw new IOException(mf.format(new String[] { lang }));
+			}
+			databases.remove(lang).close();
+			recordMaps.remove(lang);
+			hashesMaps.remove(lang);
+			compressors.remove(lang);
+			samples.remove(lang);
+		}
+		File file = new File(folder, "tuv_" + lang);
+		deleteFiles(file);
+		DB mapdb = options.withoutLog().maker(file).make();
+		try {
+			Iterator<Fun.Tuple2<Integer, String[]>> source = segments;
+			SegmentCompressor compressor = null;
+			if (compress) {
+				// the first segments train the dictionary, then all are compressed
+				List<Fun.Tuple2<Integer, String[]>> head = new ArrayList<>();
+				List<String> texts = new ArrayList<>();
+				int size = 0;
+				while (size < SAMPLE_SIZE && segments.hasNext()) {
+					Fun.Tuple2<Integer, String[]> segment = segments.next();
+					head.add(segment);
+					texts.add(segment.b[0]);
+					texts.add(segment.b[1]);
+					size += segment.b[0].length() + segment.b[1].length();
+				}
+				if (size >= SAMPLE_SIZE) {
+					compressor = new SegmentCompressor(SegmentCompressor.train(texts));
+					mapdb.createAtomicVar(DICTIONARY, compressor.getDictionary(), null);
+				}
+				source = new Concatenation<>(head.iterator(), segments);
+			}
+			SegmentCompressor langCompressor = compressor;
+			Iterator<Fun.Tuple2<Integer, String[]>> records = source;
+			mapdb.createTreeMap("records").pumpSource(new Iterator<Fun.Tuple2<Integer, Object>>() {
+
+				@Override
+				public boolean hasNext() {
+					return records.hasNext();
+				}
+
+				@Override
+				public Fun.Tuple2<Integer, Object> next() {
+					Fun.Tuple2<Integer, String[]> segment = records.next();
+					String[] texts = segment.b;
+					try {
+						hashes.add(((long) texts[0].toLowerCase().hashCode() << 32) | segment.a);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return Fun.t2(segment.a, langCompressor != null ? langCompressor.compress(texts[0], texts[1])
+							: Fun.t2(texts[0], texts[1]));
+				}
+			}).make();
+			SortedRuns.Cursor cursor = hashes.cursor();
+			try {
+				PrimitiveIterator.OfLong keys = SortedRuns.distinctKeys(cursor);
+				mapdb.createTreeSet("exact").pumpSource(new Iterator<Fun.Tuple2<Integer, Integer>>() {
+
+					@Override
+					public boolean hasNext() {
+						return keys.hasNext();
+					}
+
+					@Override
+					public Fun.Tuple2<Integer, Integer> next() {
+						long key = keys.nextLong();
+						return Fun.t2((int) (key >> 32), (int) key);
+					}
+				}).make();
+			} finally {
+				cursor.close();
+			}
+			mapdb.commit();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			mapdb.close();
+		}
+		buildIndex(lang);
+	}
+
+	/**
+	 * Deletes the files of a MapDB store: the data file and its index and log.
+	 */
+	static void deleteFiles(File file) throws IOException {
+		File[] files = file.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.equals(file.getName()) || name.startsWith(file.getName() + ".")) {
+				Files.delete(files[i].toPath());
+			}
+		}
+	}
+
+	@Override
 	public void commit() {
 		Set<String> langSet = databases.keySet();
 		Iterator<String> keys = langSet.iterator();
@@ -61,6 +253,7 @@ public class TuvDatabase {
 		}
 	}
 
+	@Override
 	public void close() {
 		commit();
 		Set<String> langSet = databases.keySet();
@@ -71,82 +264,162 @@ public class TuvDatabase {
 		}
 	}
 
-	public void store(String lang, String tuid, String puretext, String seg) throws IOException {
-		if (!textMaps.containsKey(lang)) {
+	@Override
+	public void store(String lang, int id, String puretext, String seg) throws IOException {
+		if (!recordMaps.containsKey(lang)) {
 			buildIndex(lang);
 		}
-		int idHash = tuid.hashCode();
-		BTreeMap<Integer, String> textmap = textMaps.get(lang);
-		if (textmap.containsKey(idHash)) {
-			textmap.replace(idHash, puretext);
+		SegmentCompressor compressor = compressors.get(lang);
+		if (compress && compressor != null) {
+			recordMaps.get(lang).put(id, compressor.compress(puretext, seg));
 		} else {
-			textmap.put(idHash, puretext);
+			recordMaps.get(lang).put(id, Fun.t2(puretext, seg));
+			if (compress) {
+				sample(lang, id, puretext, seg);
+			}
 		}
-		BTreeMap<Integer, String> segmap = segsMaps.get(lang);
-		if (segmap.containsKey(idHash)) {
-			segmap.replace(idHash, seg);
-		} else {
-			segmap.put(idHash, seg);
-		}
-		int hash = puretext.toLowerCase().hashCode();
-		BTreeMap<Integer, Set<String>> hashmap = hashesMaps.get(lang);
-		if (hashmap.containsKey(hash)) {
-			Set<String> set = hashesMaps.get(lang).get(hash);
-			set.add(tuid);
-			hashmap.replace(hash, set);
-		} else {
-			Set<String> set = new TreeSet<>();
-			set.add(tuid);
-			hashmap.put(hash, set);
+		hashesMaps.get(lang).add(Fun.t2(puretext.toLowerCase().hashCode(), id));
+	}
+
+	/**
+	 * Collects the segments stored for a language until there are enough to
+	 * train its dictionary, then compresses them with it.
+	 */
+	private synchronized void sample(String lang, int id, String puretext, String seg) {
+		if (compressors.containsKey(lang)) {
+			return;
+		}
+		Sample sample = samples.computeIfAbsent(lang, l -> new Sample());
+		sample.ids.add(id);
+		sample.texts.add(puretext);
+		sample.texts.add(seg);
+		sample.size += puretext.length() + seg.length();
+		if (sample.size < SAMPLE_SIZE) {
+			return;
+		}
+		DB mapdb = databases.get(lang);
+		SegmentCompressor compressor = new SegmentCompressor(SegmentCompressor.train(sample.texts));
+		mapdb.createAtomicVar(DICTIONARY, compressor.getDictionary(), null);
+		BTreeMap<Integer, Object> records = recordMaps.get(lang);
+		Iterator<Integer> it = sample.ids.iterator();
+		while (it.hasNext()) {
+			int sampled = it.next();
+			Object record = records.get(sampled);
+			if (record instanceof Fun.Tuple2) {
+				Fun.Tuple2<?, ?> tuple = (Fun.Tuple2<?, ?>) record;
+				records.put(sampled, compressor.compress((String) tuple.a, (String) tuple.b));
+			}
 		}
+		compressors.put(lang, compressor);
+		samples.remove(lang);
 	}
 
-	public String getSegText(String lang, String tuid) throws IOException {
-		if (!segsMaps.containsKey(lang)) {
+	private String[] getRecord(String lang, int id) throws IOException {
+		if (!recordMaps.containsKey(lang)) {
 			buildIndex(lang);
 		}
-		return segsMaps.get(lang).get(tuid.hashCode());
+		return decode(lang, recordMaps.get(lang).get(id));
+	}
+
+	private String[] decode(String lang, Object record) throws IOException {
+		if (record == null) {
+			return null;
+		}
+		if (record instanceof byte[]) {
+			SegmentCompressor compressor = compressors.get(lang);
+			if (compressor == null) {
+				MessageFormat mf = new MessageFormat("Dictionary of segments in {0} is missing.");
+				throw new IOException(mf.format(new String[] { lang }));
+			}
+			return compressor.decompress((byte[]) record);
+		}
+		Fun.Tuple2<?, ?> tuple = (Fun.Tuple2<?, ?>) record;
+		return new String[] { (String) tuple.a, (String) tuple.b };
+	}
+
+	@Override
+	public String getSegText(String lang, int id) throws IOException {
+		String[] record = getRecord(lang, id);
+		return record != null ? record[1] : null;
 	}
 
-	public void remove(String lang, String tuid) throws IOException {
-		if (!textMaps.containsKey(lang)) {
+	@Override
+	public String[] getTuv(String lang, int id) throws IOException {
+		return getRecord(lang, id);
+	}
+
+	@Override
+	public String[] getMatch(String srcLang, String tgtLang, int id) throws IOException {
+		String[] source = getRecord(srcLang, id);
+		if (source == null) {
+			return null;
+		}
+		String target = getSegText(tgtLang, id);
+		return target != null ? new String[] { source[0], source[1], target } : null;
+	}
+
+	@Override
+	public void remove(String lang, int id) throws IOException {
+		if (!recordMaps.containsKey(lang)) {
 			buildIndex(lang);
 		}
-		int idHash = tuid.hashCode();
-		String oldText = getPureText(lang, idHash);
-		if (oldText != null) {
-			textMaps.get(lang).remove(idHash);
-			segsMaps.get(lang).remove(idHash);
-			int textHash = oldText.toLowerCase().hashCode();
-			Set<String> set = hashesMaps.get(lang).get(textHash);
-			set.remove(tuid);
-			hashesMaps.get(lang).replace(textHash, set);
+		String[] old = decode(lang, recordMaps.get(lang).remove(id));
+		if (old != null) {
+			hashesMaps.get(lang).remove(Fun.t2(old[0].toLowerCase().hashCode(), id));
 		}
 	}
 
-	public Set<String> getPerfectMatches(String lang, String searchStr) throws IOException {
+	@Override
+	public Set<Integer> getPerfectMatches(String lang, String searchStr) throws IOException {
 		if (!hashesMaps.containsKey(lang)) {
 			buildIndex(lang);
 		}
-		BTreeMap<Integer, Set<String>> hashmap = hashesMaps.get(lang);
-		int textHash = searchStr.toLowerCase().hashCode();
-		if (hashmap.containsKey(textHash)) {
-			return hashmap.get(textHash);
+		Set<Integer> result = new TreeSet<>();
+		Iterator<Integer> it = Fun.filter(hashesMaps.get(lang), searchStr.toLowerCase().hashCode()).iterator();
+		while (it.hasNext()) {
+			result.add(it.next());
 		}
-		return new TreeSet<>();
+		return result;
 	}
 
+	@Override
 	public NavigableSet<Integer> getKeySet(String lang) throws IOException {
-		if (!hashesMaps.containsKey(lang)) {
+		if (!recordMaps.containsKey(lang)) {
 			buildIndex(lang);
 		}
-		return textMaps.get(lang).keySet();
+		return recordMaps.get(lang).keySet();
 	}
 
-	public String getPureText(String lang, Integer id) throws IOException {
-		if (!textMaps.containsKey(lang)) {
-			buildIndex(lang);
+	@Override
+	public String getPureText(String lang, int id) throws IOException {
+		String[] record = getRecord(lang, id);
+		return record != null ? record[0] : null;
+	}
+
+	private static class Concatenation<T> implements Iterator<T> {
+
+		private Iterator<T> first;
+		private Iterator<T> second;
+
+		Concatenation(Iterator<T> first, Iterator<T> second) {
+			this.first = first;
+			this.second = second;
 		}
-		return textMaps.get(lang).get(id);
+
+		@Override
+		public boolean hasNext() {
+			return first.hasNext() || second.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return first.hasNext() ? first.next() : second.next();
+		}
+	}
+
+	private static class Sample {
+		List<Integer> ids = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		int size;
 	}
 }
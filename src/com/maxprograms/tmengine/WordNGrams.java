@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+public class WordNGrams implements INGramStrategy {
+
+	public static final String NAME = "word-trigrams";
+
+	WordNGrams() {
+		// shared instance returned by NGrams
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int[] getNGrams(String string) {
+		return NGrams.getNGrams(string);
+	}
+
+}
@@ -46,6 +46,7 @@ import com.maxprograms.tmengine.ITmEngine;
 import com.maxprograms.tmengine.MapDbEngine;
 import com.maxprograms.tmengine.Match;
 import com.maxprograms.tmengine.SQLEngine;
+import com.maxprograms.tmengine.TuFilter;
 import com.maxprograms.tmutils.TMUtils;
 import com.maxprograms.xml.Element;
 import com.sun.net.httpserver.HttpExchange;
@@ -134,6 +135,10 @@ public class TmHandler implements HttpHandler {
                 response = exportMemory(request);
             } else if ((prefix + "/import").equals(url)) {
                 response = importTMX(request);
+            } else if ((prefix + "/freeze").equals(url)) {
+                response = freezeMemory(request, true);
+            } else if ((prefix + "/thaw").equals(url)) {
+                response = freezeMemory(request, false);
             } else if ((prefix + "/flag").equals(url)) {
                 response = flag(request);
             } else if ((prefix + "/search").equals(url)) {
@@ -263,9 +268,10 @@ public class TmHandler implements HttpHandler {
                 if (shouldClose) {
                     open(id);
                 }
+                int maxResults = json.has("maxResults") ? json.getInt("maxResults") : 0;
                 List<Match> matches = openEngines.get(id).searchTranslation(json.getString("text"),
                         json.getString("srcLang"), json.getString("tgtLang"), json.getInt("similarity"),
-                        json.getBoolean("caseSensitive"));
+                        json.getBoolean("caseSensitive"), maxResults, getFilter(json));
                 if (shouldClose) {
                     close(id);
                 }
@@ -285,6 +291,25 @@ public class TmHandler implements HttpHandler {
         return result;
     }
 
+    /**
+     * Reads the optional "filter" object of a request, with "project",
+     * "customer", "subject", "creationFrom", "creationTo", "changeFrom" and
+     * "changeTo" members. Returns null if the request has no filter.
+     */
+    private static TuFilter getFilter(JSONObject json) {
+        if (!json.has("filter")) {
+            return null;
+        }
+        JSONObject filterJson = json.getJSONObject("filter");
+        TuFilter filter = new TuFilter();
+        filter.setProject(filterJson.optString("project", null));
+        filter.setCustomer(filterJson.optString("customer", null));
+        filter.setSubject(filterJson.optString("subject", null));
+        filter.setCreationDates(filterJson.optString("creationFrom", null), filterJson.optString("creationTo", null));
+        filter.setChangeDates(filterJson.optString("changeFrom", null), filterJson.optString("changeTo", null));
+        return filter;
+    }
+
     private JSONObject concordanceSearch(String request) {
         JSONObject result = new JSONObject();
         final JSONObject json = new JSONObject(request);
@@ -299,7 +324,7 @@ public class TmHandler implements HttpHandler {
                 }
                 List<Element> entries = openEngines.get(id).concordanceSearch(json.getString("text"),
                         json.getString("srcLang"), json.getInt("limit"), json.getBoolean("isRegexp"),
-                        json.getBoolean("caseSensitive"));
+                        json.getBoolean("caseSensitive"), getFilter(json));
                 if (shouldClose) {
                     close(id);
                 }
@@ -411,7 +436,12 @@ public class TmHandler implements HttpHandler {
                     srcLang = json.getString("srcLang");
                 }
                 ITmEngine engine = openEngines.get(id);
-                engine.exportMemory(json.getString("file"), langs, srcLang, properties);
+                if (engine instanceof MapDbEngine && json.has("threads")) {
+                    ((MapDbEngine) engine).exportMemory(json.getString("file"), langs, srcLang, properties,
+                            getFilter(json), json.getInt("threads"));
+                } else {
+                    engine.exportMemory(json.getString("file"), langs, srcLang, properties, getFilter(json));
+                }
                 if (shouldClose) {
                     close(id);
                 }
@@ -450,7 +480,16 @@ public class TmHandler implements HttpHandler {
                     open(id);
                 }
                 ITmEngine engine = openEngines.get(id);
-                int count = engine.storeTMX(json.getString("file"), project, customer, subject);
+                int count;
+                if (engine instanceof MapDbEngine
+                        && (json.has("workers") || json.has("queueSize") || json.has("bulkLoad"))) {
+                    int workers = json.optInt("workers", 0);
+                    int queueSize = json.optInt("queueSize", 1000);
+                    count = ((MapDbEngine) engine).storeTMX(json.getString("file"), project, customer, subject,
+                            workers, queueSize, json.optBoolean("bulkLoad", false));
+                } else {
+                    count = engine.storeTMX(json.getString("file"), project, customer, subject);
+                }
                 if (shouldClose) {
                     close(id);
                 }
@@ -466,6 +505,40 @@ public class TmHandler implements HttpHandler {
         return result;
     }
 
+    private JSONObject freezeMemory(String request, boolean freeze) {
+        JSONObject result = new JSONObject();
+        final JSONObject json = new JSONObject(request);
+        final String process = UUID.randomUUID().toString();
+        openTasks.put(process, new String[] { Constants.PENDING });
+        new Thread(() -> {
+            try {
+                String id = json.getString("id");
+                boolean shouldClose = !openEngines.containsKey(id);
+                if (shouldClose) {
+                    open(id);
+                }
+                ITmEngine engine = openEngines.get(id);
+                if (!(engine instanceof MapDbEngine)) {
+                    throw new IOException("Wrong memory type");
+                }
+                if (freeze) {
+                    ((MapDbEngine) engine).freeze();
+                } else {
+                    ((MapDbEngine) engine).thaw();
+                }
+                if (shouldClose) {
+                    close(id);
+                }
+                openTasks.put(process, new String[] { Constants.COMPLETED });
+            } catch (IOException | SQLException | JSONException e) {
+                LOGGER.log(Level.WARNING, freeze ? "Error freezing memory" : "Error thawing memory", e);
+                openTasks.put(process, new String[] { Constants.FAILED, e.getMessage() });
+            }
+        }).start();
+        result.put("process", process);
+        return result;
+    }
+
     protected void open(String id) throws IOException, SQLException {
         if (!memories.containsKey(id)) {
             throw new IOException("Unknown memory");
@@ -473,7 +546,7 @@ public class TmHandler implements HttpHandler {
         if (!openEngines.containsKey(id)) {
             JSONObject mem = memories.get(id);
             if ("MapDbEngine".equals(mem.getString("type"))) {
-                openEngines.put(id, new MapDbEngine(id, getWorkFolder()));
+                openEngines.put(id, new MapDbEngine(id, getWorkFolder(), mem));
             } else if ("SQLEngine".equals(mem.getString("type"))) {
                 openEngines.put(id, new SQLEngine(mem.getString("name"), mem.getString("serverName"),
                         mem.getInt("port"), mem.getString("userName"), mem.getString("password")));
@@ -602,7 +675,7 @@ public class TmHandler implements HttpHandler {
             }
             ITmEngine engine = null;
             if ("MapDbEngine".equals(json.getString("type"))) {
-                engine = new MapDbEngine(json.getString("id"), getWorkFolder());
+                engine = new MapDbEngine(json.getString("id"), getWorkFolder(), json);
                 engine.close();
             } else if ("SQLEngine".equals(json.getString("type"))) {
                 if (!json.has("port")) {
@@ -22,7 +22,8 @@ import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 
-import com.maxprograms.tmengine.ITmEngine;
+import com.maxprograms.tmengine.CommitPolicy;
+import com.maxprograms.tmengine.ITuStore;
 import com.maxprograms.xml.Catalog;
 import com.maxprograms.xml.Document;
 import com.maxprograms.xml.Element;
@@ -36,10 +37,13 @@ class TMXContentHandler implements IContentHandler {
 	private Deque<Element> stack;
 	private boolean inCDATA = false;
 	private int count;
-	private ITmEngine db;
+	private long characters;
+	private ITuStore db;
+	private CommitPolicy policy;
 	
-	public TMXContentHandler(ITmEngine tmEngine) {
-		db = tmEngine;
+	public TMXContentHandler(ITuStore store) {
+		db = store;
+		policy = store.createCommitPolicy();
 		stack = new ConcurrentLinkedDeque<>();
 	}
 
@@ -47,6 +51,7 @@ class TMXContentHandler implements IContentHandler {
 	public void characters(char[] ch, int start, int length) throws SAXException {
 		if (!inCDATA && current != null) {
 			current.addContent(new String(ch, start, length));
+			characters += length;
 		}
 	}
 
@@ -60,7 +65,7 @@ class TMXContentHandler implements IContentHandler {
 		if (localName.equals("tu")) {
 			try {
 				db.storeTu(current);
-				if (count % 500 == 0) {
+				if (policy.stored(characters)) {
 					db.commit();
 				}
 			} catch (IOException | SQLException e) {
@@ -68,6 +73,7 @@ class TMXContentHandler implements IContentHandler {
 				LOGGER.log(Level.WARNING, "Error storing " + current);
 			}
 			count++;
+			characters = 0;
 			current = null;
 			stack.clear();
 		} else {
@@ -18,7 +18,7 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
-import com.maxprograms.tmengine.ITmEngine;
+import com.maxprograms.tmengine.ITuStore;
 import com.maxprograms.xml.SAXBuilder;
 
 public class TMXReader {
@@ -26,8 +26,8 @@ public class TMXReader {
 	private SAXBuilder builder;
 	private TMXContentHandler handler;
 
-	public TMXReader(ITmEngine database) {
-		handler = new TMXContentHandler(database);
+	public TMXReader(ITuStore store) {
+		handler = new TMXContentHandler(store);
 		builder = new SAXBuilder();
 		builder.setEntityResolver(new TMXResolver());
 		builder.setContentHandler(handler);
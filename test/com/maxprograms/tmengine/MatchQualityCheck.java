@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares {@link MatchQuality#similarity(String, String)} and the tiling
+ * scorer with the matrix based implementation that the LCS kernel replaced
+ * over random pairs of strings, then measures the bytes allocated and the time
+ * taken per call. Both scorers are also called with a random threshold, which
+ * must give the same similarity when it is reached and a lower value when it
+ * is not.
+ */
+public class MatchQualityCheck {
+
+	private static final String[] ALPHABETS = { "ab ", "abcde  ,.", "abcdefghijklmnopqrstuvwxyz     ", "aaaa b\t\n",
+			"中文日本語 " };
+	private static final String[] WORDS = "the click button save file open close window menu settings user data"
+			.split(" ");
+	private static final int PENALTY = 2;
+
+	private MatchQualityCheck() {
+		// run from main
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(1);
+		for (int i = 0; i < count; i++) {
+			String[] pair = randomPair(random, i);
+			int expected = reference(pair[0], pair[1]);
+			int actual = MatchQuality.similarity(pair[0], pair[1]);
+			int tiling = MatchQuality.similarity(pair[0], pair[1], 0, MatchQuality.TILING);
+			if (expected != actual || expected != tiling) {
+				throw new IllegalStateException("Different scores for \"" + pair[0] + "\" and \"" + pair[1] + "\": "
+						+ expected + " " + actual + " " + tiling);
+			}
+			// half of the thresholds close to the similarity, where scoring stops early
+			int threshold = random.nextBoolean() ? random.nextInt(101)
+					: Math.max(0, expected - 3 + random.nextInt(7));
+			checkThreshold(pair, expected, threshold, MatchQuality.LCS);
+			checkThreshold(pair, expected, threshold, MatchQuality.TILING);
+		}
+		System.out.println(count + " pairs checked");
+
+		String one = "Click the OK button to save the changes you made to the current settings of the translation memory server.";
+		String two = "Click the Cancel button to discard the changes you made to the settings of the translation memory.";
+		StringBuilder longOne = new StringBuilder();
+		StringBuilder longTwo = new StringBuilder();
+		while (longTwo.length() < 500) {
+			longOne.append(one);
+			longTwo.append(two);
+		}
+		measure(one, two, 5000);
+		measure(longOne.substring(0, 500), longTwo.substring(0, 500), 200);
+		while (longTwo.length() < 2000) {
+			longOne.append(one);
+			longTwo.append(two);
+		}
+		measure(longOne.substring(0, 2000), longTwo.substring(0, 2000), 20);
+	}
+
+	private static void checkThreshold(String[] pair, int expected, int threshold, String scorer) {
+		int result = MatchQuality.similarity(pair[0], pair[1], threshold, scorer);
+		if (expected >= threshold ? result != expected : result >= threshold) {
+			throw new IllegalStateException("Wrong " + scorer + " score for \"" + pair[0] + "\" and \"" + pair[1]
+					+ "\" with threshold " + threshold + ": " + result + " instead of " + expected);
+		}
+	}
+
+	private static String[] randomPair(Random random, int i) {
+		String x;
+		String y;
+		if (i % 3 == 0) {
+			String alphabet = ALPHABETS[random.nextInt(ALPHABETS.length)];
+			x = randomString(random, alphabet, random.nextInt(60));
+			y = random.nextBoolean() ? mutate(random, x, alphabet)
+					: randomString(random, alphabet, random.nextInt(60));
+		} else {
+			x = sentence(random);
+			y = random.nextInt(4) == 0 ? sentence(random) : mutate(random, x, " abcdefgh");
+		}
+		if (random.nextInt(10) == 0) {
+			y = x;
+		}
+		if (random.nextInt(20) == 0) {
+			y = " " + x + "  ";
+		}
+		return new String[] { x, y };
+	}
+
+	private static void measure(String one, String two, int calls) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int round = 0; round < 3; round++) {
+			long bytes0 = threads.getThreadAllocatedBytes(thread);
+			long time0 = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				reference(one, two);
+			}
+			long bytes1 = threads.getThreadAllocatedBytes(thread);
+			long time1 = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				MatchQuality.similarity(one, two);
+			}
+			long bytes2 = threads.getThreadAllocatedBytes(thread);
+			long time2 = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				MatchQuality.similarity(one, two, 0, MatchQuality.TILING);
+			}
+			long bytes3 = threads.getThreadAllocatedBytes(thread);
+			long time3 = System.nanoTime();
+			System.out.println(one.length() + " chars, reference: " + (bytes1 - bytes0) / calls + " bytes/call "
+					+ (time1 - time0) / calls / 1000 + " us/call, lcs: " + (bytes2 - bytes1) / calls + " bytes/call "
+					+ (time2 - time1) / calls / 1000 + " us/call, tiling: " + (bytes3 - bytes2) / calls
+					+ " bytes/call " + (time3 - time2) / calls / 1000 + " us/call");
+		}
+	}
+
+	private static String randomString(Random random, String alphabet, int length) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return builder.toString();
+	}
+
+	private static String sentence(Random random) {
+		StringBuilder builder = new StringBuilder();
+		int words = 1 + random.nextInt(25);
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				builder.append(' ');
+			}
+			builder.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return builder.toString();
+	}
+
+	private static String mutate(Random random, String string, String alphabet) {
+		StringBuilder builder = new StringBuilder(string);
+		int changes = random.nextInt(6);
+		for (int i = 0; i < changes; i++) {
+			int operation = builder.length() == 0 ? 0 : random.nextInt(3);
+			int position = random.nextInt(builder.length() + 1);
+			char c = alphabet.charAt(random.nextInt(alphabet.length()));
+			if (operation == 0) {
+				builder.insert(position, c);
+			} else if (position < builder.length()) {
+				if (operation == 1) {
+					builder.deleteCharAt(position);
+				} else {
+					builder.setCharAt(position, c);
+				}
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The implementation replaced by the allocation free kernel, unchanged.
+	 */
+	private static int reference(String one, String two) {
+		int result = 0;
+		String x = one.trim();
+		String y = two.trim();
+		int longest = Math.max(x.length(), y.length());
+		if (longest == 0) {
+			return 0;
+		}
+		String a;
+		String b;
+		if (x.length() == longest) {
+			a = x;
+			b = y;
+		} else {
+			a = y;
+			b = x;
+		}
+		// a is the longest string
+		int count = -1;
+		int idx;
+		String lcs = lcs(a, b);
+		while (!lcs.trim().isEmpty() && lcs.length() > longest * PENALTY / 100) {
+			count++;
+			idx = a.indexOf(lcs);
+			a = a.substring(0, idx) + a.substring(idx + lcs.length());
+			idx = b.indexOf(lcs);
+			b = b.substring(0, idx) + b.substring(idx + lcs.length());
+			lcs = lcs(a, b);
+		}
+		result = 100 * (longest - a.length()) / longest - count * PENALTY;
+		if (result < 0) {
+			result = 0;
+		}
+		return result;
+	}
+
+	private static String lcs(String x, String y) {
+		StringBuilder result = new StringBuilder();
+		int m = x.length();
+		int n = y.length();
+		int max = 0;
+		int mx = 0;
+		int[][] opt = new int[m + 1][n + 1];
+		for (int i = 1; i <= m; i++) {
+			for (int j = 1; j <= n; j++) {
+				if (x.charAt(i - 1) == y.charAt(j - 1)) {
+					opt[i][j] = opt[i - 1][j - 1] + 1;
+					if (opt[i][j] > max) {
+						max = opt[i][j];
+						mx = i;
+					}
+				} else {
+					opt[i][j] = 0;
+				}
+			}
+		}
+		while (max > 0) {
+			result.insert(0, x.charAt(mx - 1));
+			max--;
+			mx--;
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2021 Maxprograms.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Maxprograms - initial API and implementation
+ *******************************************************************************/
+package com.maxprograms.tmengine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/**
+ * Compares {@link NGrams#getNGrams(String)} with the StringTokenizer based
+ * implementation it replaced over random strings, then measures the bytes
+ * allocated and the time taken per call by both.
+ */
+public class NGramsCheck {
+
+	private static final String ALPHABET = "abcdefghij ABCDÉé,.-;:¿?!()ıİßΣσς中文日本語ไทย  \t\n «";
+	private static final String SENTENCE = "The quick brown fox jumps over the lazy dog, then the dog sleeps under the old oak tree near the river bank.";
+
+	private NGramsCheck() {
+		// run from main
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(1);
+		for (int i = 0; i < count; i++) {
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(120);
+			for (int j = 0; j < length; j++) {
+				builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			String text = builder.toString();
+			int[] expected = reference(text);
+			int[] actual = NGrams.getNGrams(text);
+			if (!Arrays.equals(expected, actual)) {
+				throw new IllegalStateException("Different n-grams for \"" + text + "\": "
+						+ Arrays.toString(expected) + " " + Arrays.toString(actual));
+			}
+		}
+		System.out.println(count + " strings checked");
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		int calls = 200000;
+		for (int round = 0; round < 3; round++) {
+			long bytes0 = threads.getThreadAllocatedBytes(thread);
+			long time0 = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				reference(SENTENCE);
+			}
+			long bytes1 = threads.getThreadAllocatedBytes(thread);
+			long time1 = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				NGrams.getNGrams(SENTENCE);
+			}
+			long bytes2 = threads.getThreadAllocatedBytes(thread);
+			long time2 = System.nanoTime();
+			System.out.println("reference: " + (bytes1 - bytes0) / calls + " bytes/call " + (time1 - time0) / calls
+					+ " ns/call, getNGrams: " + (bytes2 - bytes1) / calls + " bytes/call " + (time2 - time1) / calls
+					+ " ns/call");
+		}
+	}
+
+	/**
+	 * The implementation replaced by the single pass scanner, unchanged except
+	 * that hashes are returned sorted by value.
+	 */
+	private static int[] reference(String string) {
+		String src = string.toLowerCase();
+		List<String> words = new Vector<>();
+		StringTokenizer tokenizer = new StringTokenizer(src, NGrams.SEPARATORS);
+		while (tokenizer.hasMoreElements()) {
+			words.add(tokenizer.nextToken());
+		}
+		Set<String> set = Collections.synchronizedSortedSet(new TreeSet<>());
+		Iterator<String> it = words.iterator();
+		while (it.hasNext()) {
+			String word = it.next();
+			char[] array = word.toCharArray();
+			int length = word.length();
+			int ngrams = length / 3;
+			if (ngrams * 3 < length) {
+				ngrams++;
+			}
+			for (int i = 0; i < ngrams; i++) {
+				StringBuilder gram = new StringBuilder();
+				for (int j = 0; j < 3; j++) {
+					if (i * 3 + j < length) {
+						gram.append(array[i * 3 + j]);
+					}
+				}
+				set.add("" + gram.toString().hashCode());
+			}
+		}
+		int[] result = new int[set.size()];
+		int idx = 0;
+		it = set.iterator();
+		while (it.hasNext()) {
+			result[idx++] = Integer.parseInt(it.next());
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}